@@ -0,0 +1,93 @@
+package org.avaje.idea.typequery.bench;
+
+import org.avaje.idea.typequery.plugin.ClassFileReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of reading a class file via {@link ClassFileReader} compared with the stream copy
+ * it replaced (BufferedInputStream copied through a 1028 byte buffer into a ByteArrayOutputStream).
+ * <pre>
+ *   java -cp querybean-agent.jar:jmh-jars:plugin-classes:bench-classes org.openjdk.jmh.Main ClassFileReaderBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassFileReaderBenchmark {
+
+  /**
+   * Class file sizes in bytes, from a small class to a large generated one.
+   */
+  @Param({"512", "4096", "32768", "262144"})
+  public int size;
+
+  private File file;
+
+  @Setup
+  public void setup() throws IOException {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    file = File.createTempFile("querybean-bench", ".class");
+    Files.write(file.toPath(), content);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.delete(file.toPath());
+  }
+
+  @Benchmark
+  public byte[] classFileReader() throws IOException {
+    return ClassFileReader.read(file);
+  }
+
+  @Benchmark
+  public byte[] streamCopy() throws IOException {
+    try (InputStream is = new FileInputStream(file)) {
+      return streamCopy(is);
+    }
+  }
+
+  /**
+   * The read of InputStreamTransform before ClassFileReader.
+   */
+  private static byte[] streamCopy(InputStream is) throws IOException {
+
+    BufferedInputStream bis = new BufferedInputStream(is);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+
+    byte[] buf = new byte[1028];
+
+    int len;
+    while ((len = bis.read(buf, 0, buf.length)) > -1) {
+      baos.write(buf, 0, len);
+    }
+    baos.flush();
+    baos.close();
+    return baos.toByteArray();
+  }
+}
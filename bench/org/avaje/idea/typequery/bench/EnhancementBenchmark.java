@@ -0,0 +1,217 @@
+package org.avaje.idea.typequery.bench;
+
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+import org.avaje.idea.typequery.plugin.ClassBytesReader;
+import org.avaje.idea.typequery.plugin.ClasspathClassBytesReader;
+import org.avaje.idea.typequery.plugin.EnhancementEngine;
+import org.avaje.idea.typequery.plugin.IdeaClassLoader;
+import org.avaje.idea.typequery.plugin.InputStreamTransform;
+import org.avaje.idea.typequery.plugin.LruClassBytesReader;
+import org.avaje.idea.typequery.plugin.MetricsClassBytesReader;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Benchmark of the enhancement hot path (InputStreamTransform plus QueryBeanTransformer) outside of the IDE.
+ * <p>
+ * For each scale a synthetic project is generated and compiled, then each iteration enhances all of
+ * its classes with a fresh class loader and transformer as a build does. Reported per iteration are
+ * the time and throughput, bytes allocated (thread allocation counter), GC time, the class loader
+ * overhead (class byte reads made by the class loader and the time spent in them) and the classes
+ * defined and metaspace used by resolving classes (defining classes versus <code>-metadata</code> resolution).
+ * With <code>-lru</code> the class loader reads via an {@link LruClassBytesReader} kept across the iterations.
+ * </p>
+ * <pre>
+ *   java -cp querybean-agent.jar:plugin-classes:bench-classes org.avaje.idea.typequery.bench.EnhancementBenchmark [-warmup 3] [-iterations 5] [-metadata] [-lru] [scale ...]
+ * </pre>
+ */
+public class EnhancementBenchmark {
+
+  private static final int[] DEFAULT_SCALES = {100, 1000, 10000};
+
+  private final int warmup;
+
+  private final int iterations;
+
+  private final boolean metadataResolution;
+
+  private final boolean lru;
+
+  private EnhancementBenchmark(int warmup, int iterations, boolean metadataResolution, boolean lru) {
+    this.warmup = warmup;
+    this.iterations = iterations;
+    this.metadataResolution = metadataResolution;
+    this.lru = lru;
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    int warmup = 3;
+    int iterations = 5;
+    boolean metadataResolution = false;
+    boolean lru = false;
+    List<Integer> scales = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if ("-warmup".equals(args[i])) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if ("-iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if ("-metadata".equals(args[i])) {
+        metadataResolution = true;
+      } else if ("-lru".equals(args[i])) {
+        lru = true;
+      } else {
+        scales.add(Integer.parseInt(args[i]));
+      }
+    }
+    if (scales.isEmpty()) {
+      for (int scale : DEFAULT_SCALES) {
+        scales.add(scale);
+      }
+    }
+
+    EnhancementBenchmark benchmark = new EnhancementBenchmark(warmup, iterations, metadataResolution, lru);
+    System.out.println((metadataResolution ? "metadata resolution" : "define classes") + (lru ? ", lru cache" : ""));
+    System.out.println(String.format("%8s %11s %10s %12s %12s %12s %10s %12s %8s %8s %10s",
+        "classes", "transformed", "ms/op", "classes/s", "alloc MB/op", "alloc B/cls", "cl reads", "cl ms/op", "gc ms",
+        "defined", "meta KB"));
+    for (int scale : scales) {
+      benchmark.run(scale);
+    }
+  }
+
+  private void run(int scale) throws Exception {
+
+    File baseDir = Files.createTempDirectory("querybean-bench").toFile();
+    SyntheticProject project = new SyntheticProject(baseDir, scale).build();
+
+    ClasspathClassBytesReader classpathReader = new ClasspathClassBytesReader(Collections.singletonList(project.getClassesDir()));
+    ClassBytesReader reader = lru ? new LruClassBytesReader(classpathReader, 32 * 1024 * 1024) : classpathReader;
+    try {
+      for (int i = 0; i < warmup; i++) {
+        iteration(project, reader);
+      }
+      Result total = new Result();
+      for (int i = 0; i < iterations; i++) {
+        total.add(iteration(project, reader));
+      }
+      total.print(project.getClassNames().size(), iterations);
+
+    } finally {
+      classpathReader.close();
+    }
+  }
+
+  /**
+   * Enhance all the classes of the project once, as a build does.
+   */
+  private Result iteration(SyntheticProject project, ClassBytesReader reader) throws Exception {
+
+    MetricsClassBytesReader metricsReader = new MetricsClassBytesReader("classpath", reader);
+    IdeaClassLoader classLoader = new IdeaClassLoader(EnhancementBenchmark.class.getClassLoader(), metricsReader);
+    Set<String> packages = Collections.singleton(SyntheticProject.DOMAIN_PACKAGE);
+    QueryBeanTransformer transformer = EnhancementEngine.createTransformer(packages, 0, classLoader, metadataResolution);
+    InputStreamTransform isTransform = new InputStreamTransform(transformer, classLoader);
+
+    Result result = new Result();
+    long gcStart = gcMillis();
+    long allocStart = allocatedBytes();
+    long loadedStart = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+    long metaspaceStart = metaspaceUsed();
+    long start = System.nanoTime();
+
+    File classesDir = project.getClassesDir();
+    for (String className : project.getClassNames()) {
+      File file = new File(classesDir, className.replace('.', '/') + ".class");
+      if (isTransform.transform(className, file) != null) {
+        result.transformed++;
+      }
+    }
+
+    result.nanos = System.nanoTime() - start;
+    result.allocated = allocatedBytes() - allocStart;
+    result.gcMillis = gcMillis() - gcStart;
+    result.loaderReads = metricsReader.getHits() + metricsReader.getMisses();
+    result.loaderNanos = metricsReader.getNanos();
+    result.definedClasses = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() - loadedStart;
+    result.metaspace = metaspaceUsed() - metaspaceStart;
+    return result;
+  }
+
+  /**
+   * Return the bytes of metaspace used (0 if the JVM has no metaspace pool).
+   */
+  private static long metaspaceUsed() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if ("Metaspace".equals(pool.getName())) {
+        return pool.getUsage().getUsed();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Return the bytes allocated by the current thread or -1 if not supported by the JVM.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+
+  /**
+   * Measurements of one or more iterations.
+   */
+  private static class Result {
+
+    private int transformed;
+    private long nanos;
+    private long allocated;
+    private long gcMillis;
+    private long loaderReads;
+    private long loaderNanos;
+    private long definedClasses;
+    private long metaspace;
+
+    private void add(Result other) {
+      transformed += other.transformed;
+      nanos += other.nanos;
+      allocated += other.allocated;
+      gcMillis += other.gcMillis;
+      loaderReads += other.loaderReads;
+      loaderNanos += other.loaderNanos;
+      definedClasses += other.definedClasses;
+      metaspace += other.metaspace;
+    }
+
+    private void print(int classes, int iterations) {
+      double msPerOp = nanos / 1000000d / iterations;
+      double classesPerSec = classes * iterations / (nanos / 1000000000d);
+      double allocPerOp = allocated / (1024d * 1024d) / iterations;
+      long allocPerClass = allocated / ((long) classes * iterations);
+      System.out.println(String.format("%8d %11d %10.2f %12.0f %12.2f %12d %10d %12.2f %8d %8d %10d",
+          classes, transformed / iterations, msPerOp, classesPerSec, allocPerOp, allocPerClass,
+          loaderReads / iterations, loaderNanos / 1000000d / iterations, gcMillis / iterations,
+          definedClasses / iterations, metaspace / 1024 / iterations));
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package org.avaje.idea.typequery.bench;
+
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+import org.avaje.idea.typequery.plugin.ClasspathClassBytesReader;
+import org.avaje.idea.typequery.plugin.EnhancementEngine;
+import org.avaje.idea.typequery.plugin.IdeaClassLoader;
+import org.avaje.idea.typequery.plugin.InputStreamTransform;
+import org.avaje.idea.typequery.plugin.MetricsClassBytesReader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the enhancement hot path (InputStreamTransform plus QueryBeanTransformer) enhancing
+ * all the classes of a synthetic project with a fresh class loader and transformer, as a build does.
+ * <p>
+ * The time is per build of the project (divide the scale by it for classes per second), the allocation
+ * rate is reported by the GC profiler (<code>-prof gc</code>) and the class loader overhead by the
+ * loaderReads and loaderMs counters (per build). {@link EnhancementBenchmark} additionally reports the
+ * classes defined and metaspace used.
+ * </p>
+ * <pre>
+ *   java -cp querybean-agent.jar:jmh-jars:plugin-classes:bench-classes org.openjdk.jmh.Main EnhancementJmhBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnhancementJmhBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int scale;
+
+  @Param({"false", "true"})
+  public boolean metadataResolution;
+
+  private File baseDir;
+
+  private SyntheticProject project;
+
+  private List<File> files;
+
+  private ClasspathClassBytesReader classpathReader;
+
+  /**
+   * The class loader reads made while enhancing, per build of the project.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class LoaderCounters {
+
+    private long builds;
+
+    private long reads;
+
+    private long nanos;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      builds = 0;
+      reads = 0;
+      nanos = 0;
+    }
+
+    public double loaderReads() {
+      return builds == 0 ? 0 : (double) reads / builds;
+    }
+
+    public double loaderMs() {
+      return builds == 0 ? 0 : nanos / 1000000d / builds;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    baseDir = Files.createTempDirectory("querybean-jmh").toFile();
+    project = new SyntheticProject(baseDir, scale).build();
+    files = new ArrayList<>(project.getClassNames().size());
+    for (String className : project.getClassNames()) {
+      files.add(new File(project.getClassesDir(), className.replace('.', '/') + ".class"));
+    }
+    classpathReader = new ClasspathClassBytesReader(Collections.singletonList(project.getClassesDir()));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    classpathReader.close();
+    delete(baseDir);
+  }
+
+  /**
+   * Enhance all the classes of the project returning the number transformed.
+   */
+  @Benchmark
+  public int enhance(LoaderCounters counters) throws Exception {
+
+    MetricsClassBytesReader metricsReader = new MetricsClassBytesReader("classpath", classpathReader);
+    IdeaClassLoader classLoader = new IdeaClassLoader(EnhancementJmhBenchmark.class.getClassLoader(), metricsReader);
+    Set<String> packages = Collections.singleton(SyntheticProject.DOMAIN_PACKAGE);
+    QueryBeanTransformer transformer = EnhancementEngine.createTransformer(packages, 0, classLoader, metadataResolution);
+    InputStreamTransform isTransform = new InputStreamTransform(transformer, classLoader);
+
+    int transformed = 0;
+    List<String> classNames = project.getClassNames();
+    for (int i = 0; i < classNames.size(); i++) {
+      if (isTransform.transform(classNames.get(i), files.get(i)) != null) {
+        transformed++;
+      }
+    }
+    counters.builds++;
+    counters.reads += metricsReader.getHits() + metricsReader.getMisses();
+    counters.nanos += metricsReader.getNanos();
+    return transformed;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
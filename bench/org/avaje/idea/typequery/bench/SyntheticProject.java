@@ -0,0 +1,167 @@
+package org.avaje.idea.typequery.bench;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates and compiles a synthetic project of entity, query bean, caller and plain classes.
+ * <p>
+ * The query bean support types (TQRootBean, PString etc) are minimal stand ins for the real
+ * querybean library, enough for the agent to enhance the query beans and their callers.
+ * </p>
+ */
+class SyntheticProject {
+
+  static final String DOMAIN_PACKAGE = "bench.domain";
+
+  private final File sourceDir;
+
+  private final File classesDir;
+
+  private final int entityCount;
+
+  /**
+   * The class names (dot form) in the order generated.
+   */
+  private final List<String> classNames = new ArrayList<>();
+
+  /**
+   * Create with roughly the given number of classes split evenly across entities, query beans, callers and plain classes.
+   */
+  SyntheticProject(File baseDir, int classCount) {
+    this.sourceDir = new File(baseDir, "src");
+    this.classesDir = new File(baseDir, "classes");
+    this.entityCount = Math.max(1, classCount / 4);
+  }
+
+  File getClassesDir() {
+    return classesDir;
+  }
+
+  /**
+   * Return the generated project classes (excluding the query bean support types).
+   */
+  List<String> getClassNames() {
+    return Collections.unmodifiableList(classNames);
+  }
+
+  /**
+   * Generate the sources and compile them.
+   */
+  SyntheticProject build() throws IOException {
+
+    List<File> sources = new ArrayList<>();
+    sources.add(write("org.avaje.ebean.typequery.TypeQueryBean", "package org.avaje.ebean.typequery;\n"
+        + "import java.lang.annotation.*;\n"
+        + "@Retention(RetentionPolicy.CLASS) @Target(ElementType.TYPE)\n"
+        + "public @interface TypeQueryBean {}\n"));
+    sources.add(write("org.avaje.ebean.typequery.TQRootBean", "package org.avaje.ebean.typequery;\n"
+        + "public abstract class TQRootBean<T, R> {\n"
+        + "  protected R root;\n"
+        + "  public TQRootBean(Class<T> beanType) {}\n"
+        + "  public TQRootBean(boolean alias) {}\n"
+        + "  protected void setRoot(R root) { this.root = root; }\n"
+        + "  public java.util.List<T> findList() { return null; }\n"
+        + "}\n"));
+    sources.add(write("org.avaje.ebean.typequery.PString", "package org.avaje.ebean.typequery;\n"
+        + "public class PString<R> {\n"
+        + "  private final R root;\n"
+        + "  public PString(String name, R root) { this.root = root; }\n"
+        + "  public R eq(String value) { return root; }\n"
+        + "}\n"));
+    sources.add(write("org.avaje.ebean.typequery.PLong", "package org.avaje.ebean.typequery;\n"
+        + "public class PLong<R> {\n"
+        + "  private final R root;\n"
+        + "  public PLong(String name, R root) { this.root = root; }\n"
+        + "  public R greaterThan(long value) { return root; }\n"
+        + "}\n"));
+
+    for (int i = 0; i < entityCount; i++) {
+      String entity = "Entity" + i;
+      String qbean = "Q" + entity;
+      String otherQbean = "QEntity" + ((i + 1) % entityCount);
+      sources.add(write(DOMAIN_PACKAGE + "." + entity, "package " + DOMAIN_PACKAGE + ";\n"
+          + "public class " + entity + " {\n"
+          + "  Long id;\n"
+          + "  String name;\n"
+          + "}\n"));
+      sources.add(write(DOMAIN_PACKAGE + ".query." + qbean, "package " + DOMAIN_PACKAGE + ".query;\n"
+          + "import org.avaje.ebean.typequery.*;\n"
+          + "import " + DOMAIN_PACKAGE + "." + entity + ";\n"
+          + "@TypeQueryBean\n"
+          + "public class " + qbean + " extends TQRootBean<" + entity + ", " + qbean + "> {\n"
+          + "  public PLong<" + qbean + "> id;\n"
+          + "  public PString<" + qbean + "> name;\n"
+          + "  public " + qbean + "() { super(" + entity + ".class); }\n"
+          + "  public " + qbean + "(boolean alias) { super(alias); }\n"
+          + "}\n"));
+      sources.add(write("bench.service.Service" + i, "package bench.service;\n"
+          + "import " + DOMAIN_PACKAGE + ".query." + qbean + ";\n"
+          + "public class Service" + i + " {\n"
+          + "  public Object find(String name) {\n"
+          + "    return new " + qbean + "().name.eq(name).id.greaterThan(" + i + "L).findList();\n"
+          + "  }\n"
+          // merging two query bean types makes frame computation resolve them via the class loader
+          + "  public Object pick(boolean first) {\n"
+          + "    org.avaje.ebean.typequery.TQRootBean<?, ?> query = first ? new " + qbean + "() : new " + DOMAIN_PACKAGE + ".query." + otherQbean + "();\n"
+          + "    return query.findList();\n"
+          + "  }\n"
+          + "}\n"));
+      sources.add(write("bench.util.Plain" + i, "package bench.util;\n"
+          + "public class Plain" + i + " {\n"
+          + "  public int size(java.util.List<String> values) {\n"
+          + "    return values == null ? " + i + " : values.size();\n"
+          + "  }\n"
+          + "}\n"));
+    }
+
+    compile(sources);
+    return this;
+  }
+
+  private File write(String className, String source) throws IOException {
+    File file = new File(sourceDir, className.replace('.', '/') + ".java");
+    File dir = file.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+    if (!className.startsWith("org.avaje.")) {
+      classNames.add(className);
+    }
+    return file;
+  }
+
+  private void compile(List<File> sources) throws IOException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IOException("No system java compiler, run the benchmark using a JDK");
+    }
+    if (!classesDir.exists() && !classesDir.mkdirs()) {
+      throw new IOException("Unable to create directory " + classesDir);
+    }
+    List<String> args = new ArrayList<>();
+    args.add("-nowarn");
+    // the agent reads class files up to Java 8
+    args.add("-source");
+    args.add("8");
+    args.add("-target");
+    args.add("8");
+    args.add("-d");
+    args.add(classesDir.getPath());
+    for (File source : sources) {
+      args.add(source.getPath());
+    }
+    int result = compiler.run(null, null, null, args.toArray(new String[args.size()]));
+    if (result != 0) {
+      throw new IOException("Compiling the synthetic project failed");
+    }
+  }
+}
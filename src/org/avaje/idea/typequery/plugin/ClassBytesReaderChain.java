@@ -0,0 +1,44 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads class bytes from a chain of readers in order, returning the bytes of the first that finds the class.
+ * <p>
+ * Cheap sources (the classes of the current build, caches, indexes) are put in front of slow ones
+ * (the PSI search) and links can be decorated, for example with {@link MetricsClassBytesReader}.
+ * </p>
+ */
+public class ClassBytesReaderChain implements ClassBytesReader {
+
+  private final List<ClassBytesReader> readers;
+
+  public ClassBytesReaderChain(ClassBytesReader... readers) {
+    this(Arrays.asList(readers));
+  }
+
+  public ClassBytesReaderChain(List<ClassBytesReader> readers) {
+    this.readers = Collections.unmodifiableList(new ArrayList<>(readers));
+  }
+
+  /**
+   * Return the readers in the order they are tried.
+   */
+  public List<ClassBytesReader> getReaders() {
+    return readers;
+  }
+
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    for (ClassBytesReader reader : readers) {
+      byte[] bytes = reader.getClassBytes(classNamePath, classLoader);
+      if (bytes != null) {
+        return bytes;
+      }
+    }
+    return null;
+  }
+}
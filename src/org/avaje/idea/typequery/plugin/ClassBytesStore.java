@@ -0,0 +1,134 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per build store of class file bytes keyed by className (dot form) such that each class file is read
+ * from disk once, the bytes being shared by the transform of the class and the class loader resolving it.
+ * <p>
+ * The bytes are held via soft references so the store gives way under memory pressure, cleared
+ * entries being read again when next needed. Soft references are only cleared when the heap is
+ * nearly full so they do not bound the memory used, the store is cleared as each chunk of a build
+ * is written. Safe for concurrent use.
+ * </p>
+ */
+public class ClassBytesStore {
+
+  /**
+   * Last modified time and length of a file whose version was not recorded.
+   */
+  private static final long UNKNOWN = -1;
+
+  /**
+   * Soft reference to the bytes that knows its key, to remove the entry once cleared, and the version
+   * (last modified time and length) of the file the bytes were read from when known.
+   */
+  private static class Entry extends SoftReference<byte[]> {
+
+    private final String className;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private Entry(String className, byte[] bytes, long lastModified, long length, ReferenceQueue<byte[]> queue) {
+      super(bytes, queue);
+      this.className = className;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final ReferenceQueue<byte[]> cleared = new ReferenceQueue<>();
+
+  private final AtomicInteger reads = new AtomicInteger();
+
+  private final AtomicInteger hits = new AtomicInteger();
+
+  /**
+   * Return the bytes of the class file, reading it if it is not held.
+   */
+  public byte[] read(String className, File file) throws IOException {
+    Entry entry = entries.get(className);
+    byte[] bytes = (entry == null) ? null : entry.get();
+    if (bytes != null) {
+      hits.incrementAndGet();
+      return bytes;
+    }
+    return load(className, file, UNKNOWN, UNKNOWN);
+  }
+
+  /**
+   * Return the bytes of the given version of the class file (its last modified time and length taken
+   * before the read), reading it if the bytes held are of another or an unknown version.
+   * <p>
+   * Used when the class file can be written again while it is read (streaming), such that bytes read
+   * before the file was written again are not returned for the newer version.
+   * </p>
+   */
+  public byte[] read(String className, File file, long lastModified, long length) throws IOException {
+    Entry entry = entries.get(className);
+    byte[] bytes = (entry == null || entry.lastModified != lastModified || entry.length != length) ? null : entry.get();
+    if (bytes != null) {
+      hits.incrementAndGet();
+      return bytes;
+    }
+    return load(className, file, lastModified, length);
+  }
+
+  private byte[] load(String className, File file, long lastModified, long length) throws IOException {
+    byte[] bytes = ClassFileReader.read(file);
+    reads.incrementAndGet();
+    expunge();
+    entries.put(className, new Entry(className, bytes, lastModified, length, cleared));
+    return bytes;
+  }
+
+  /**
+   * Remove the entry of a class whose file has been written again.
+   */
+  public void remove(String className) {
+    entries.remove(className);
+  }
+
+  /**
+   * Remove all the entries, releasing the bytes of a chunk of classes once it is written.
+   */
+  public void clear() {
+    entries.clear();
+    expunge();
+  }
+
+  /**
+   * Remove the entries whose bytes have been cleared by the garbage collector.
+   */
+  private void expunge() {
+    Reference<? extends byte[]> reference;
+    while ((reference = cleared.poll()) != null) {
+      Entry entry = (Entry) reference;
+      entries.remove(entry.className, entry);
+    }
+  }
+
+  /**
+   * Return the number of class files read from disk.
+   */
+  public int getReads() {
+    return reads.get();
+  }
+
+  /**
+   * Return the number of reads served from the store.
+   */
+  public int getHits() {
+    return hits.get();
+  }
+}
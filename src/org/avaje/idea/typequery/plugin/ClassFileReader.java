@@ -0,0 +1,91 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the raw bytes of class files.
+ * <p>
+ * Files are read through a FileChannel straight into an array sized from the file length so the
+ * bytes are copied once. Streams of unknown length are read via a per thread scratch buffer.
+ * </p>
+ */
+public final class ClassFileReader {
+
+  private static final int SCRATCH_SIZE = 8192;
+
+  /**
+   * Scratch buffers larger than this are not kept for reuse.
+   */
+  private static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
+
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[SCRATCH_SIZE];
+    }
+  };
+
+  private ClassFileReader() {
+  }
+
+  /**
+   * Read all the bytes of the file.
+   */
+  public static byte[] read(File file) throws IOException {
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File too large to read " + file);
+      }
+
+      byte[] bytes = new byte[(int) size];
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          // file was truncated while reading
+          return Arrays.copyOf(bytes, buffer.position());
+        }
+      }
+      if (channel.position() < channel.size()) {
+        // file grew while reading, fall back to reading the rest as a stream
+        return readRemaining(bytes, channel);
+      }
+      return bytes;
+    }
+  }
+
+  private static byte[] readRemaining(byte[] start, FileChannel channel) throws IOException {
+    byte[] rest = read(Channels.newInputStream(channel));
+    byte[] all = Arrays.copyOf(start, start.length + rest.length);
+    System.arraycopy(rest, 0, all, start.length, rest.length);
+    return all;
+  }
+
+  /**
+   * Read all the bytes of the input stream (without closing it).
+   */
+  public static byte[] read(InputStream is) throws IOException {
+
+    byte[] scratch = SCRATCH.get();
+    int len = 0;
+    int read;
+    while ((read = is.read(scratch, len, scratch.length - len)) > -1) {
+      len += read;
+      if (len == scratch.length) {
+        scratch = Arrays.copyOf(scratch, scratch.length * 2);
+      }
+    }
+    if (scratch.length <= MAX_RETAINED_SCRATCH_SIZE) {
+      SCRATCH.set(scratch);
+    }
+    return Arrays.copyOf(scratch, len);
+  }
+}
@@ -0,0 +1,195 @@
+package org.avaje.idea.typequery.plugin;
+
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Per project cache of the class files found via the PSI lookup in IdeaClassBytesReader.
+ * <p>
+ * As a {@link ClassBytesReader} it returns the cached bytes of classes previously found, such that it
+ * is placed in front of the PSI lookup in the reader chain.
+ * </p>
+ * <p>
+ * Holds the resolved class file and bytes for a className along with misses (classes that could
+ * not be found) such that repeated builds do not repeat the PSI search. The cache is bounded by
+ * the number of entries and the total bytes held, evicting the least recently used entries.
+ * </p>
+ * <p>
+ * Entries are evicted when the class file changes (VFS events) and the whole cache is cleared
+ * when the project roots change.
+ * </p>
+ */
+public class ClassLocationCache implements ClassBytesReader, BulkFileListener, ModuleRootListener {
+
+  private static final int MAX_ENTRIES = 4000;
+
+  private static final long MAX_BYTES = 32 * 1024 * 1024;
+
+  /**
+   * A cached lookup result, a miss has no file and bytes.
+   */
+  static class Entry {
+
+    private final VirtualFile file;
+
+    private final long modificationStamp;
+
+    private final byte[] bytes;
+
+    private Entry(VirtualFile file, byte[] bytes) {
+      this.file = file;
+      this.modificationStamp = (file == null) ? 0 : file.getModificationStamp();
+      this.bytes = bytes;
+    }
+
+    /**
+     * Return the class bytes or null if the class was not found.
+     */
+    byte[] getBytes() {
+      return bytes;
+    }
+
+    boolean isMiss() {
+      return file == null;
+    }
+
+    private boolean isValid() {
+      return file == null || (file.isValid() && file.getModificationStamp() == modificationStamp);
+    }
+
+    private int size() {
+      return bytes == null ? 0 : bytes.length;
+    }
+
+    private boolean isFrom(Set<String> paths) {
+      if (file == null) {
+        return false;
+      }
+      String filePath = file.getPath();
+      if (paths.contains(filePath)) {
+        return true;
+      }
+      // an entry in a changed jar file
+      int jarEnd = filePath.indexOf("!/");
+      return jarEnd > -1 && paths.contains(filePath.substring(0, jarEnd));
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+  private long totalBytes;
+
+  /**
+   * Return the cached entry for the class or null if the class has not been looked up.
+   */
+  synchronized Entry get(String classNamePath) {
+    Entry entry = entries.get(classNamePath);
+    if (entry != null && !entry.isValid()) {
+      remove(classNamePath);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Return the cached bytes of the class, null if it has not been found before (or was a miss).
+   */
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    Entry entry = get(classNamePath);
+    return entry == null ? null : entry.getBytes();
+  }
+
+  /**
+   * Cache the class file and bytes found for the class.
+   */
+  synchronized void put(String classNamePath, VirtualFile file, byte[] bytes) {
+    add(classNamePath, new Entry(file, bytes));
+  }
+
+  /**
+   * Cache that the class could not be found.
+   */
+  synchronized void putMiss(String classNamePath) {
+    add(classNamePath, new Entry(null, null));
+  }
+
+  /**
+   * Clear all the cached entries.
+   */
+  synchronized void clear() {
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  private void add(String classNamePath, Entry entry) {
+    remove(classNamePath);
+    entries.put(classNamePath, entry);
+    totalBytes += entry.size();
+
+    // evict least recently used entries
+    Iterator<Entry> it = entries.values().iterator();
+    while ((entries.size() > MAX_ENTRIES || totalBytes > MAX_BYTES) && it.hasNext()) {
+      Entry eldest = it.next();
+      totalBytes -= eldest.size();
+      it.remove();
+    }
+  }
+
+  private void remove(String classNamePath) {
+    Entry removed = entries.remove(classNamePath);
+    if (removed != null) {
+      totalBytes -= removed.size();
+    }
+  }
+
+  @Override
+  public void before(List<? extends VFileEvent> events) {
+  }
+
+  @Override
+  public void after(List<? extends VFileEvent> events) {
+    Set<String> paths = new HashSet<>();
+    for (VFileEvent event : events) {
+      String path = event.getPath();
+      if (path != null && (path.endsWith(".class") || path.endsWith(".jar"))) {
+        paths.add(path);
+      }
+    }
+    if (!paths.isEmpty()) {
+      evict(paths);
+    }
+  }
+
+  /**
+   * Evict entries for the changed class and jar files along with all the misses (as they may now be found).
+   */
+  private synchronized void evict(Set<String> paths) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.isMiss() || entry.isFrom(paths)) {
+        totalBytes -= entry.size();
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public void beforeRootsChange(ModuleRootEvent event) {
+  }
+
+  @Override
+  public void rootsChanged(ModuleRootEvent event) {
+    clear();
+  }
+}
@@ -0,0 +1,160 @@
+package org.avaje.idea.typequery.plugin;
+
+/**
+ * The type hierarchy of a class read from its class file header, without defining the class.
+ * <p>
+ * This is all the agent needs of the classes it resolves (to compute stack map frames). The header
+ * is parsed directly (rather than with the agent's ASM) such that class files of any version can be
+ * read, JDK classes included.
+ * </p>
+ */
+final class ClassMetadata {
+
+  private static final int ACC_INTERFACE = 0x0200;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  private final String name;
+
+  private final String superName;
+
+  private final String[] interfaces;
+
+  private final boolean isInterface;
+
+  private ClassMetadata(String name, String superName, String[] interfaces, boolean isInterface) {
+    this.name = name;
+    this.superName = superName;
+    this.interfaces = interfaces;
+    this.isInterface = isInterface;
+  }
+
+  /**
+   * Read the metadata from the class bytes (only the constant pool and header are parsed).
+   *
+   * @throws IllegalArgumentException if the bytes are not a valid class file
+   */
+  static ClassMetadata read(byte[] b) {
+    try {
+      if (readUnsignedShort(b, 0) != 0xCAFE || readUnsignedShort(b, 2) != 0xBABE) {
+        throw new IllegalArgumentException("Not a class file");
+      }
+      int count = readUnsignedShort(b, 8);
+      // offset of each constant pool entry
+      int[] offsets = new int[count];
+      int offset = 10;
+      for (int i = 1; i < count; i++) {
+        offsets[i] = offset;
+        int tag = b[offset];
+        switch (tag) {
+          case CONSTANT_UTF8:
+            offset += 3 + readUnsignedShort(b, offset + 1);
+            break;
+          case CONSTANT_LONG:
+          case CONSTANT_DOUBLE:
+            offset += 9;
+            // takes two constant pool slots
+            i++;
+            break;
+          case CONSTANT_METHOD_HANDLE:
+            offset += 4;
+            break;
+          case CONSTANT_CLASS:
+          case CONSTANT_STRING:
+          case CONSTANT_METHOD_TYPE:
+          case CONSTANT_MODULE:
+          case CONSTANT_PACKAGE:
+            offset += 3;
+            break;
+          default:
+            // integer, float, member references, name and type, dynamic and invoke dynamic
+            offset += 5;
+        }
+      }
+      int access = readUnsignedShort(b, offset);
+      String name = className(b, offsets, readUnsignedShort(b, offset + 2));
+      String superName = className(b, offsets, readUnsignedShort(b, offset + 4));
+      String[] interfaces = new String[readUnsignedShort(b, offset + 6)];
+      for (int i = 0; i < interfaces.length; i++) {
+        interfaces[i] = className(b, offsets, readUnsignedShort(b, offset + 8 + i * 2));
+      }
+      return new ClassMetadata(name, superName, interfaces, (access & ACC_INTERFACE) != 0);
+
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated class file", e);
+    }
+  }
+
+  /**
+   * Return the name of the class constant at the index, null for index 0 (no super class).
+   */
+  private static String className(byte[] b, int[] offsets, int classIndex) {
+    if (classIndex == 0) {
+      return null;
+    }
+    return utf8Constant(b, offsets[readUnsignedShort(b, offsets[classIndex] + 1)]);
+  }
+
+  /**
+   * Return the value of the CONSTANT_Utf8 entry at the offset (of its tag), shared by the constant pool readers.
+   * <p>
+   * The value is modified UTF-8 (decoded as DataInput.readUTF), where supplementary characters are
+   * encoded as a surrogate pair of 3 byte sequences and the null character as 2 bytes.
+   * </p>
+   */
+  static String utf8Constant(byte[] b, int utf8Offset) {
+    int length = readUnsignedShort(b, utf8Offset + 1);
+    int offset = utf8Offset + 3;
+    char[] chars = new char[length];
+    int count = 0;
+    int end = offset + length;
+    while (offset < end) {
+      int c = b[offset++] & 0xFF;
+      if (c < 0x80) {
+        chars[count++] = (char) c;
+      } else if ((c & 0xE0) == 0xC0) {
+        chars[count++] = (char) (((c & 0x1F) << 6) | (b[offset++] & 0x3F));
+      } else {
+        chars[count++] = (char) (((c & 0x0F) << 12) | ((b[offset++] & 0x3F) << 6) | (b[offset++] & 0x3F));
+      }
+    }
+    return new String(chars, 0, count);
+  }
+
+  private static int readUnsignedShort(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Return the internal name of the class.
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Return the internal name of the super class, null for java/lang/Object.
+   */
+  String getSuperName() {
+    return superName;
+  }
+
+  /**
+   * Return the internal names of the directly implemented interfaces.
+   */
+  String[] getInterfaces() {
+    return interfaces;
+  }
+
+  boolean isInterface() {
+    return isInterface;
+  }
+}
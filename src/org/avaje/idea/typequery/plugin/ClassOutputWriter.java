@@ -0,0 +1,299 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes enhanced classes such that an interrupted enhancement is detected and repaired.
+ * <p>
+ * The classes to write are first recorded in a (synced) journal, then written to temporary files beside
+ * the class files (in parallel, each synced by the task writing it) and committed by atomically renaming
+ * each temporary file over its class file. The directories of the class files are synced once after the
+ * renames (making them durable) and only then is the journal removed. A journal found on a following
+ * build therefore lists the classes that may not have been enhanced: {@link #recover()} removes any
+ * temporary files and returns them to be enhanced again (the agent skipping those already enhanced).
+ * </p>
+ * <p>
+ * Writes are serialised, one set of classes being written (and journaled) at a time.
+ * </p>
+ */
+public class ClassOutputWriter {
+
+  /**
+   * Suffix of the temporary files written beside the class files.
+   */
+  static final String TEMP_SUFFIX = ".enhancing";
+
+  private static final String JOURNAL_HEADER = "querybean-enhancement-journal 1";
+
+  /**
+   * Callback before the written classes are committed.
+   */
+  public static class Listener {
+
+    /**
+     * All the classes are written to temporary files, throw to discard them rather than commit.
+     */
+    public void beforeCommit() {
+    }
+  }
+
+  private final File journalFile;
+
+  /**
+   * Create the writer.
+   *
+   * @param journalFile the journal of the classes being written, null for no journal
+   */
+  public ClassOutputWriter(File journalFile) {
+    this.journalFile = journalFile;
+  }
+
+  /**
+   * Return the classes (keyed by className) of an interrupted write that still exist, removing any
+   * temporary files and the journal. Returns an empty map when the last write completed.
+   */
+  public synchronized Map<String, File> recover() throws IOException {
+
+    Map<String, File> classes = new LinkedHashMap<>();
+    if (journalFile == null || !journalFile.exists()) {
+      return classes;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+      if (!JOURNAL_HEADER.equals(reader.readLine())) {
+        throw new IOException("Invalid enhancement journal " + journalFile);
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab > 0) {
+          File file = new File(line.substring(tab + 1));
+          Files.deleteIfExists(tempFile(file).toPath());
+          if (file.exists()) {
+            classes.put(line.substring(0, tab), file);
+          }
+        }
+      }
+    }
+    Files.delete(journalFile.toPath());
+    return classes;
+  }
+
+  /**
+   * Write the classes (transformed bytes keyed by className) over their class files.
+   * <p>
+   * When writing fails or the listener throws no class file is changed.
+   * </p>
+   *
+   * @param classes     the transformed bytes keyed by className
+   * @param files       the class files keyed by className
+   * @param workers     the workers of the build writing the temporary files, null to write them sequentially
+   * @param listener    called before the classes are committed
+   */
+  public synchronized void write(Map<String, byte[]> classes, Map<String, File> files, ExecutorService workers, Listener listener) throws IOException {
+
+    if (classes.isEmpty()) {
+      return;
+    }
+    final List<File> outputs = new ArrayList<>(classes.size());
+    for (String className : classes.keySet()) {
+      outputs.add(files.get(className));
+    }
+    writeJournal(classes.keySet(), outputs);
+
+    boolean committing = false;
+    try {
+      writeTemporary(outputs, new ArrayList<>(classes.values()), workers);
+      listener.beforeCommit();
+      committing = true;
+      for (File file : outputs) {
+        move(tempFile(file), file);
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      if (!committing) {
+        // nothing was changed, the journal is not needed
+        discard(outputs);
+      }
+      throw e;
+    }
+    // the renames are durable before the journal goes
+    syncDirectories(outputs);
+    if (journalFile != null) {
+      deleteJournal();
+    }
+  }
+
+  private static File tempFile(File file) {
+    return new File(file.getPath() + TEMP_SUFFIX);
+  }
+
+  /**
+   * Record the classes being written, synced before any class is written.
+   */
+  private void writeJournal(Iterable<String> classNames, List<File> outputs) throws IOException {
+    if (journalFile == null) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder(outputs.size() * 100);
+    sb.append(JOURNAL_HEADER).append('\n');
+    int i = 0;
+    for (String className : classNames) {
+      sb.append(className).append('\t').append(outputs.get(i++).getPath()).append('\n');
+    }
+    File dir = journalFile.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    writeSynced(journalFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Write and sync the temporary files, in parallel when there are workers.
+   */
+  private void writeTemporary(final List<File> outputs, final List<byte[]> contents, ExecutorService workers) throws IOException {
+
+    if (workers == null || outputs.size() <= 1) {
+      for (int i = 0; i < outputs.size(); i++) {
+        writeSynced(tempFile(outputs.get(i)), contents.get(i));
+      }
+      return;
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<>(outputs.size());
+    for (int i = 0; i < outputs.size(); i++) {
+      final int index = i;
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          writeSynced(tempFile(outputs.get(index)), contents.get(index));
+          return null;
+        }
+      });
+    }
+    List<Future<Void>> futures;
+    try {
+      futures = workers.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted writing enhanced classes", e);
+    }
+    for (Future<Void> future : futures) {
+      await(future);
+    }
+  }
+
+  private static void await(Future<Void> future) throws IOException {
+    try {
+      future.get();
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted writing enhanced classes", e);
+
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Write the file and force its content to the disk.
+   */
+  private void writeSynced(File file, byte[] content) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      sync(file, channel);
+    }
+  }
+
+  /**
+   * Force the written file to the disk.
+   */
+  void sync(File file, FileChannel channel) throws IOException {
+    channel.force(true);
+  }
+
+  /**
+   * Commit the temporary file by atomically renaming it over the class file.
+   */
+  void move(File tempFile, File file) throws IOException {
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Sync each directory of the committed class files once, making the renames durable.
+   */
+  private void syncDirectories(List<File> outputs) {
+    Set<File> directories = new LinkedHashSet<>();
+    for (File file : outputs) {
+      directories.add(file.getAbsoluteFile().getParentFile());
+    }
+    for (File directory : directories) {
+      syncDirectory(directory);
+    }
+  }
+
+  /**
+   * Sync the directory, skipped on platforms that can not open a directory to sync it (Windows).
+   */
+  void syncDirectory(File directory) {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directory can not be synced on this platform
+    }
+  }
+
+  /**
+   * Remove the journal once all the classes are committed.
+   */
+  void deleteJournal() throws IOException {
+    Files.delete(journalFile.toPath());
+  }
+
+  /**
+   * Remove the temporary files and the journal of a write that was not committed.
+   */
+  private void discard(List<File> outputs) {
+    try {
+      for (File file : outputs) {
+        Files.deleteIfExists(tempFile(file).toPath());
+      }
+      if (journalFile != null) {
+        Files.deleteIfExists(journalFile.toPath());
+      }
+    } catch (IOException e) {
+      // the journal remains so the classes are repaired by the next build
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Reads class bytes from a classpath of directories and jar files.
+ * <p>
+ * This has no dependency on the IDE and is used to enhance and benchmark outside of IDEA.
+ * </p>
+ */
+public class ClasspathClassBytesReader implements ClassBytesReader, Closeable {
+
+  /**
+   * A directory or jar file of the classpath.
+   */
+  private interface Entry extends Closeable {
+
+    /**
+     * Return the bytes of the class file at the path or null when not in this entry.
+     */
+    byte[] read(String path) throws IOException;
+  }
+
+  private static class DirectoryEntry implements Entry {
+
+    private final File directory;
+
+    private DirectoryEntry(File directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    public byte[] read(String path) throws IOException {
+      File file = new File(directory, path);
+      return file.isFile() ? ClassFileReader.read(file) : null;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class JarFileEntry implements Entry {
+
+    private final JarFile jar;
+
+    private JarFileEntry(JarFile jar) {
+      this.jar = jar;
+    }
+
+    @Override
+    public byte[] read(String path) throws IOException {
+      JarEntry entry = jar.getJarEntry(path);
+      if (entry == null) {
+        return null;
+      }
+      try (InputStream is = jar.getInputStream(entry)) {
+        return ClassFileReader.read(is);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      jar.close();
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  /**
+   * Create given the classpath entries (directories and jar files) in search order.
+   * <p>
+   * If a jar can not be opened the jars already opened are closed before the exception is thrown.
+   * </p>
+   */
+  public ClasspathClassBytesReader(List<File> classpath) throws IOException {
+    try {
+      for (File entry : classpath) {
+        if (entry.isDirectory()) {
+          entries.add(new DirectoryEntry(entry));
+        } else if (entry.isFile()) {
+          entries.add(new JarFileEntry(new JarFile(entry)));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      try {
+        close();
+      } catch (IOException closeError) {
+        e.addSuppressed(closeError);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+
+    String path = classNamePath + ".class";
+    try {
+      for (Entry entry : entries) {
+        byte[] bytes = entry.read(path);
+        if (bytes != null) {
+          return bytes;
+        }
+      }
+    } catch (IOException e) {
+      // treat as not found
+    }
+    return null;
+  }
+
+  /**
+   * Close all the jars, throwing the first failure after attempting them all.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (Entry entry : entries) {
+      try {
+        entry.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
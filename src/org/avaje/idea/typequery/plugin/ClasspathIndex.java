@@ -0,0 +1,355 @@
+package org.avaje.idea.typequery.plugin;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per project index of the library classes mapping class names to the classpath root (jar or
+ * directory) that contains them, used to read library classes without a PSI search.
+ * <p>
+ * Class names are held as a package id plus simple name in an open addressing table, the package
+ * names being shared by all the classes in the package. The index is built on first use and when
+ * library roots are added only the new roots are indexed. It is rebuilt when roots are removed or
+ * reordered or an indexed jar or class directory changes.
+ * </p>
+ * <p>
+ * Lookups must be made inside a read action.
+ * </p>
+ */
+public class ClasspathIndex implements ClassBytesReader, BulkFileListener, ModuleRootListener {
+
+  private final Project project;
+
+  /**
+   * The current index, never modified once published. Null when it needs to be built.
+   */
+  private volatile Table table;
+
+  /**
+   * Set when the project roots change such that new library roots are indexed.
+   */
+  private volatile boolean rootsChanged;
+
+  /**
+   * Incremented whenever indexed classes may have changed or been removed.
+   */
+  private final AtomicInteger generation = new AtomicInteger();
+
+  public ClasspathIndex(Project project) {
+    this.project = project;
+  }
+
+  /**
+   * Return the library class file for the class or null if the class is not in a library.
+   */
+  VirtualFile findClassFile(String classNamePath) {
+    Table current = table();
+    int rootIndex = current.find(classNamePath);
+    if (rootIndex < 0) {
+      return null;
+    }
+    VirtualFile root = current.roots[rootIndex];
+    if (!root.isValid()) {
+      invalidate();
+      return null;
+    }
+    return root.findFileByRelativePath(classNamePath + ".class");
+  }
+
+  /**
+   * Return the bytes of the library class or null if the class is not in a library.
+   */
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    VirtualFile classFile = findClassFile(classNamePath);
+    if (classFile == null) {
+      return null;
+    }
+    try {
+      return classFile.contentsToByteArray();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Discard the index such that it is rebuilt on next use.
+   */
+  void invalidate() {
+    table = null;
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Return the generation which changes when previously found library classes may no longer be valid.
+   */
+  int getGeneration() {
+    return generation.get();
+  }
+
+  private Table table() {
+    Table current = table;
+    if (current != null && !rootsChanged) {
+      return current;
+    }
+    synchronized (this) {
+      current = table;
+      if (current == null || rootsChanged) {
+        rootsChanged = false;
+        current = index(current, libraryRoots());
+        table = current;
+      }
+      return current;
+    }
+  }
+
+  private VirtualFile[] libraryRoots() {
+    return OrderEnumerator.orderEntries(project).withoutSdk().librariesOnly().classes().getRoots();
+  }
+
+  /**
+   * Return the index for the given roots, extending the existing index when roots were only added.
+   */
+  private static Table index(Table existing, VirtualFile[] roots) {
+
+    Table table;
+    int from;
+    if (existing != null && existing.isPrefixOf(roots)) {
+      table = existing.copy(roots);
+      from = existing.roots.length;
+    } else {
+      table = new Table(roots);
+      from = 0;
+    }
+    for (int i = from; i < roots.length; i++) {
+      table.addRoot(i);
+    }
+    return table;
+  }
+
+  @Override
+  public void before(List<? extends VFileEvent> events) {
+  }
+
+  @Override
+  public void after(List<? extends VFileEvent> events) {
+    Table current = table;
+    if (current == null) {
+      return;
+    }
+    for (VFileEvent event : events) {
+      String path = event.getPath();
+      if (path != null && (path.endsWith(".class") || path.endsWith(".jar")) && current.isIndexed(path)) {
+        invalidate();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void beforeRootsChange(ModuleRootEvent event) {
+  }
+
+  @Override
+  public void rootsChanged(ModuleRootEvent event) {
+    rootsChanged = true;
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Open addressing table of class names (package id plus simple name) to root index.
+   */
+  private static final class Table {
+
+    private final VirtualFile[] roots;
+
+    /**
+     * The local paths of the roots (jar file or directory).
+     */
+    private final String[] rootPaths;
+
+    private final Map<String, Integer> packageIds;
+
+    private int[] packageOf;
+
+    private String[] simpleNames;
+
+    private int[] rootOf;
+
+    private int mask;
+
+    private int size;
+
+    private Table(VirtualFile[] roots) {
+      this.roots = roots;
+      this.rootPaths = rootPaths(roots);
+      this.packageIds = new HashMap<>();
+      allocate(1024);
+    }
+
+    private Table(VirtualFile[] roots, Table source) {
+      this.roots = roots;
+      this.rootPaths = rootPaths(roots);
+      this.packageIds = new HashMap<>(source.packageIds);
+      this.packageOf = source.packageOf.clone();
+      this.simpleNames = source.simpleNames.clone();
+      this.rootOf = source.rootOf.clone();
+      this.mask = source.mask;
+      this.size = source.size;
+    }
+
+    private static String[] rootPaths(VirtualFile[] roots) {
+      String[] paths = new String[roots.length];
+      for (int i = 0; i < roots.length; i++) {
+        String path = roots[i].getPath();
+        paths[i] = path.endsWith("!/") ? path.substring(0, path.length() - 2) : path;
+      }
+      return paths;
+    }
+
+    /**
+     * Return a copy for the given roots (that start with the roots of this table).
+     */
+    private Table copy(VirtualFile[] newRoots) {
+      return new Table(newRoots, this);
+    }
+
+    private boolean isPrefixOf(VirtualFile[] newRoots) {
+      return newRoots.length >= roots.length && Arrays.equals(roots, Arrays.copyOf(newRoots, roots.length));
+    }
+
+    /**
+     * Return true if the path is an indexed jar or a class file in an indexed directory.
+     */
+    private boolean isIndexed(String path) {
+      int jarEnd = path.indexOf("!/");
+      String localPath = jarEnd > -1 ? path.substring(0, jarEnd) : path;
+      for (String rootPath : rootPaths) {
+        if (localPath.equals(rootPath) || localPath.startsWith(rootPath + "/")) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void allocate(int capacity) {
+      packageOf = new int[capacity];
+      simpleNames = new String[capacity];
+      rootOf = new int[capacity];
+      mask = capacity - 1;
+    }
+
+    private void addRoot(int rootIndex) {
+      addDirectory(rootIndex, roots[rootIndex], "");
+    }
+
+    private void addDirectory(int rootIndex, VirtualFile dir, String packagePath) {
+      VirtualFile[] children = dir.getChildren();
+      if (children == null) {
+        return;
+      }
+      Integer packageId = null;
+      for (VirtualFile child : children) {
+        String name = child.getName();
+        if (child.isDirectory()) {
+          addDirectory(rootIndex, child, packagePath.isEmpty() ? name : packagePath + "/" + name);
+        } else if (name.endsWith(".class")) {
+          if (packageId == null) {
+            packageId = packageId(packagePath);
+          }
+          put(packageId, name.substring(0, name.length() - ".class".length()), rootIndex);
+        }
+      }
+    }
+
+    private Integer packageId(String packagePath) {
+      Integer id = packageIds.get(packagePath);
+      if (id == null) {
+        id = packageIds.size();
+        packageIds.put(packagePath, id);
+      }
+      return id;
+    }
+
+    /**
+     * Add the class unless already present (the first root on the classpath wins).
+     */
+    private void put(int packageId, String simpleName, int rootIndex) {
+      if ((size + 1) * 2 > simpleNames.length) {
+        resize();
+      }
+      int i = slot(packageId, simpleName.hashCode());
+      while (simpleNames[i] != null) {
+        if (packageOf[i] == packageId && simpleNames[i].equals(simpleName)) {
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      packageOf[i] = packageId;
+      simpleNames[i] = simpleName;
+      rootOf[i] = rootIndex;
+      size++;
+    }
+
+    private void resize() {
+      int[] oldPackageOf = packageOf;
+      String[] oldSimpleNames = simpleNames;
+      int[] oldRootOf = rootOf;
+      allocate(oldSimpleNames.length * 2);
+      for (int j = 0; j < oldSimpleNames.length; j++) {
+        if (oldSimpleNames[j] != null) {
+          int i = slot(oldPackageOf[j], oldSimpleNames[j].hashCode());
+          while (simpleNames[i] != null) {
+            i = (i + 1) & mask;
+          }
+          packageOf[i] = oldPackageOf[j];
+          simpleNames[i] = oldSimpleNames[j];
+          rootOf[i] = oldRootOf[j];
+        }
+      }
+    }
+
+    /**
+     * Return the index of the root containing the class or -1 if not found.
+     */
+    private int find(String classNamePath) {
+      int slash = classNamePath.lastIndexOf('/');
+      Integer packageId = packageIds.get(slash < 0 ? "" : classNamePath.substring(0, slash));
+      if (packageId == null) {
+        return -1;
+      }
+      int start = slash + 1;
+      int length = classNamePath.length() - start;
+      int hash = 0;
+      for (int c = start; c < classNamePath.length(); c++) {
+        hash = 31 * hash + classNamePath.charAt(c);
+      }
+      int i = slot(packageId, hash);
+      while (simpleNames[i] != null) {
+        String simpleName = simpleNames[i];
+        if (packageOf[i] == packageId && simpleName.length() == length && classNamePath.regionMatches(start, simpleName, 0, length)) {
+          return rootOf[i];
+        }
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    private int slot(int packageId, int simpleNameHash) {
+      int h = packageId * 31 + simpleNameHash;
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+}
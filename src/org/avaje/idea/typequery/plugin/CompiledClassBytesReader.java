@@ -0,0 +1,36 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads the classes compiled by the current build (keyed by className) via the byte store of the build,
+ * such that a class the agent resolves is not read again when it is itself transformed (or vice versa).
+ */
+public class CompiledClassBytesReader implements ClassBytesReader {
+
+  private final Map<String, File> compiledClasses;
+
+  private final ClassBytesStore store;
+
+  public CompiledClassBytesReader(Map<String, File> compiledClasses, ClassBytesStore store) {
+    this.compiledClasses = compiledClasses;
+    this.store = store;
+  }
+
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    String className = classNamePath.replace('/', '.');
+    File compiledFile = compiledClasses.get(className);
+    if (compiledFile == null) {
+      return null;
+    }
+    try {
+      return store.read(className, compiledFile);
+    } catch (IOException e) {
+      // deleted by a following build, treat as not found
+      return null;
+    }
+  }
+}
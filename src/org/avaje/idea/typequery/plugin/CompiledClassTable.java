@@ -0,0 +1,248 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact insertion ordered map of compiled class names (dot form) to their class files.
+ * <p>
+ * Each class is held as an output root id, a package id and its simple name, the output roots and
+ * packages being shared by all the classes in them. The class names and files are created as the
+ * map is read rather than held for every class. Lookups use an open addressing table in the same
+ * way as {@link ClasspathIndex}.
+ * </p>
+ * <p>
+ * Putting an existing class replaces its file (keeping its position), removal is not supported.
+ * Not thread safe for writes, concurrent reads once populated are safe.
+ * </p>
+ */
+class CompiledClassTable extends AbstractMap<String, File> {
+
+  private final Map<String, Integer> rootIds = new HashMap<>();
+
+  private final List<String> roots = new ArrayList<>();
+
+  private final Map<String, Integer> packageIds = new HashMap<>();
+
+  /**
+   * The packages in dot form.
+   */
+  private final List<String> packages = new ArrayList<>();
+
+  /**
+   * Classes whose file is not in their package directory of an output root (not expected).
+   */
+  private final Map<String, File> other = new LinkedHashMap<>();
+
+  private int[] rootOf = new int[64];
+
+  private int[] packageOf = new int[64];
+
+  private String[] simpleNames = new String[64];
+
+  private int count;
+
+  /**
+   * Entry index plus one for each slot, 0 when the slot is empty.
+   */
+  private int[] slots = new int[128];
+
+  private int mask = slots.length - 1;
+
+  @Override
+  public File put(String className, File file) {
+
+    int dot = className.lastIndexOf('.');
+    String packageName = (dot < 0) ? "" : className.substring(0, dot);
+    String simpleName = className.substring(dot + 1);
+
+    String path = file.getPath();
+    String relativePath = className.replace('.', File.separatorChar) + ".class";
+    if (!path.endsWith(relativePath) || (path.length() > relativePath.length() && path.charAt(path.length() - relativePath.length() - 1) != File.separatorChar)) {
+      return other.put(className, file);
+    }
+    String root = path.substring(0, Math.max(0, path.length() - relativePath.length() - 1));
+
+    int packageId = id(packageIds, packages, packageName);
+    int rootId = id(rootIds, roots, root);
+    int entry = find(packageId, simpleName);
+    if (entry >= 0) {
+      File previous = file(entry);
+      rootOf[entry] = rootId;
+      return previous;
+    }
+    add(rootId, packageId, simpleName);
+    return null;
+  }
+
+  @Override
+  public File get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    String className = (String) key;
+    int dot = className.lastIndexOf('.');
+    Integer packageId = packageIds.get(dot < 0 ? "" : className.substring(0, dot));
+    int entry = (packageId == null) ? -1 : find(packageId, className.substring(dot + 1));
+    if (entry >= 0) {
+      return file(entry);
+    }
+    return other.isEmpty() ? null : other.get(className);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return count + other.size();
+  }
+
+  @Override
+  public Set<Entry<String, File>> entrySet() {
+    return new AbstractSet<Entry<String, File>>() {
+      @Override
+      public Iterator<Entry<String, File>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return CompiledClassTable.this.size();
+      }
+    };
+  }
+
+  private String className(int entry) {
+    String packageName = packages.get(packageOf[entry]);
+    return packageName.isEmpty() ? simpleNames[entry] : packageName + "." + simpleNames[entry];
+  }
+
+  private File file(int entry) {
+    String root = roots.get(rootOf[entry]);
+    String relativePath = className(entry).replace('.', File.separatorChar) + ".class";
+    return root.isEmpty() ? new File(relativePath) : new File(root, relativePath);
+  }
+
+  private static int id(Map<String, Integer> ids, List<String> values, String value) {
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = values.size();
+      ids.put(value, id);
+      values.add(value);
+    }
+    return id;
+  }
+
+  private void add(int rootId, int packageId, String simpleName) {
+    if (count == simpleNames.length) {
+      int capacity = count * 2;
+      rootOf = copyOf(rootOf, capacity);
+      packageOf = copyOf(packageOf, capacity);
+      String[] names = new String[capacity];
+      System.arraycopy(simpleNames, 0, names, 0, count);
+      simpleNames = names;
+    }
+    rootOf[count] = rootId;
+    packageOf[count] = packageId;
+    simpleNames[count] = simpleName;
+    count++;
+    if (count * 2 > slots.length) {
+      rehash(slots.length * 2);
+    } else {
+      insert(count - 1);
+    }
+  }
+
+  private static int[] copyOf(int[] values, int capacity) {
+    int[] copy = new int[capacity];
+    System.arraycopy(values, 0, copy, 0, values.length);
+    return copy;
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    mask = capacity - 1;
+    for (int entry = 0; entry < count; entry++) {
+      insert(entry);
+    }
+  }
+
+  private void insert(int entry) {
+    int i = slot(packageOf[entry], simpleNames[entry].hashCode());
+    while (slots[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    slots[i] = entry + 1;
+  }
+
+  /**
+   * Return the entry index of the class or -1 if not found.
+   */
+  private int find(int packageId, String simpleName) {
+    int i = slot(packageId, simpleName.hashCode());
+    while (slots[i] != 0) {
+      int entry = slots[i] - 1;
+      if (packageOf[entry] == packageId && simpleNames[entry].equals(simpleName)) {
+        return entry;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int slot(int packageId, int simpleNameHash) {
+    int h = packageId * 31 + simpleNameHash;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * Iterates the classes in insertion order followed by any other classes.
+   */
+  private class EntryIterator implements Iterator<Entry<String, File>> {
+
+    private int next;
+
+    private Iterator<Entry<String, File>> otherIterator;
+
+    @Override
+    public boolean hasNext() {
+      return next < count || otherIterator().hasNext();
+    }
+
+    @Override
+    public Entry<String, File> next() {
+      if (next < count) {
+        int entry = next++;
+        return new SimpleImmutableEntry<>(className(entry), file(entry));
+      }
+      if (!otherIterator().hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return otherIterator.next();
+    }
+
+    private Iterator<Entry<String, File>> otherIterator() {
+      if (otherIterator == null) {
+        otherIterator = other.entrySet().iterator();
+      }
+      return otherIterator;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -20,150 +20,343 @@ package org.avaje.idea.typequery.plugin;
 
 import com.intellij.openapi.compiler.CompilationStatusListener;
 import com.intellij.openapi.compiler.CompileContext;
+import com.intellij.openapi.compiler.CompileTask;
 import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Collects the classes generated by the compiler and enhances them as the last task of the build.
+ * <p>
+ * The compiler callbacks can be made concurrently (parallel module compilation) so they only append
+ * to the current {@link Generation} without locking. Enhancing starts a new generation, such that a
+ * build starting while the previous enhancement is still running does not add to the classes being
+ * enhanced, and the existence of the generated files is checked (listing each output directory once)
+ * rather than on the compiler thread.
+ * </p>
+ * <p>
+ * Enhancing as a compile task (after compilation) means a Run/Debug launch building first starts
+ * once the classes are enhanced. The after tasks are not run when the build fails or is aborted so
+ * the classes generated by such a build are enhanced in the background when compilation finishes.
+ * The enhancements of the project are queued, one running at a time in the order they started.
+ * </p>
+ *
  * @author yevgenyk - Updated 28/04/2014 for IDEA 13
  */
-public class CompiledFileCollector implements CompilationStatusListener {
+public class CompiledFileCollector implements CompilationStatusListener, CompileTask {
 
-  private Map<String, CompiledFile> compiledClasses = new HashMap<>();
+  /**
+   * A class file reported by the compiler.
+   */
+  private static class GeneratedFile {
 
-  @Override
-  public void fileGenerated(String outputRoot, String relativePath) {
+    private final String outputRoot;
 
-    // Collect all valid compiled '.class' files
-    CompiledFile compiledFile = createCompiledFile(outputRoot, relativePath);
-    if (compiledFile != null) {
-      addClass(compiledFile);
+    private final String relativePath;
+
+    private GeneratedFile(String outputRoot, String relativePath) {
+      this.outputRoot = outputRoot;
+      this.relativePath = relativePath;
     }
   }
 
-  private void addClass(CompiledFile compiledFile) {
-    this.compiledClasses.put(compiledFile.className, compiledFile);
-  }
+  /**
+   * The class files generated by one build.
+   * <p>
+   * Callbacks enter the generation to add to it and compilation finished seals it, after which
+   * callbacks add to the following generation. The enhancement task waits (off the UI thread) for
+   * the callbacks still in flight to exit before taking the generated files.
+   * </p>
+   */
+  private static class Generation {
 
-  private CompiledFile createCompiledFile(String outputRoot, String relativePath) {
+    private static final int SEALED = Integer.MIN_VALUE;
 
-    if (outputRoot == null || relativePath == null || !relativePath.endsWith(".class")) {
-      return null;
+    /**
+     * The number of callbacks adding to the generation, with the sign bit set when sealed.
+     */
+    private final AtomicInteger writers = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<GeneratedFile> files = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Released when sealed and the last callback in flight has exited.
+     */
+    private final CountDownLatch sealed = new CountDownLatch(1);
+
+    /**
+     * Enhances classes as they are generated when streaming is enabled.
+     */
+    private final AtomicReference<StreamingEnhancer> streamingEnhancer = new AtomicReference<>();
+
+    /**
+     * Return true if the generation was entered, false if it is sealed.
+     */
+    private boolean enter() {
+      for (;;) {
+        int current = writers.get();
+        if (current < 0) {
+          return false;
+        }
+        if (writers.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    private void exit() {
+      if (writers.decrementAndGet() == SEALED) {
+        sealed.countDown();
+      }
+    }
+
+    /**
+     * Prevent further additions without waiting for the callbacks adding to the generation.
+     */
+    private void seal() {
+      for (;;) {
+        int current = writers.get();
+        if (writers.compareAndSet(current, current | SEALED)) {
+          if (current == 0) {
+            sealed.countDown();
+          }
+          return;
+        }
+      }
+    }
+
+    /**
+     * Return true if sealed with no files added and no callbacks in flight.
+     */
+    private boolean isEmpty() {
+      return writers.get() == SEALED && files.isEmpty();
     }
 
-    File file = new File(outputRoot, relativePath);
-    if (!file.exists()) {
-      return null;
+    /**
+     * Cancel the streaming enhancement of a generation that is not enhanced.
+     */
+    private void cancel() {
+      StreamingEnhancer enhancer = streamingEnhancer.getAndSet(null);
+      if (enhancer != null) {
+        enhancer.cancel();
+      }
     }
 
-    String className = resolveClassName(relativePath);
-    return new CompiledFile(file, className, outputRoot);
+    /**
+     * Wait for the callbacks adding to the sealed generation and take its streaming enhancer (null when not streaming).
+     */
+    private StreamingEnhancer awaitSealed() throws InterruptedException {
+      sealed.await();
+      return streamingEnhancer.getAndSet(null);
+    }
   }
 
+  private final EnhancementActionComponent component;
+
+  private final AtomicReference<Generation> current = new AtomicReference<>(new Generation());
+
   /**
-   * Given a content path and a class file path, resolve the fully qualified class name
+   * Queue of the enhancements of the project (fair, so run in the order they started).
    */
-  private static String resolveClassName(String relativePath) {
-    int extensionPos = relativePath.lastIndexOf('.');
-    return relativePath.substring(0, extensionPos).replace('/', '.');
+  private final ReentrantLock enhancementQueue = new ReentrantLock(true);
+
+  public CompiledFileCollector(EnhancementActionComponent component) {
+    this.component = component;
   }
 
   @Override
-  public void compilationFinished(boolean aborted, int errors, int warnings, CompileContext compileContext) {
-
+  public void fileGenerated(String outputRoot, String relativePath) {
 
-    Map<String,File> asFileMap = new LinkedHashMap<>();
+    // Collect all compiled '.class' files, their existence is checked when compilation finishes
+    if (outputRoot == null || relativePath == null || !relativePath.endsWith(".class")) {
+      return;
+    }
+    for (;;) {
+      Generation generation = current.get();
+      if (generation.enter()) {
+        try {
+          generation.files.add(new GeneratedFile(outputRoot, relativePath));
+          if (component.isStreaming()) {
+            stream(generation, resolveClassName(relativePath), new File(outputRoot, relativePath));
+          }
+        } finally {
+          generation.exit();
+        }
+        return;
+      }
+      // sealed as compilation finished, add to the following generation
+    }
+  }
 
-    Collection<CompiledFile> values = compiledClasses.values();
-    for (CompiledFile value : values) {
-      addEntry(asFileMap, value);
-      CompiledFile qb = value.toQueryBean();
-      if (qb != null) {
-        addEntry(asFileMap, qb);
+  /**
+   * Queue the class for background enhancement.
+   */
+  private void stream(Generation generation, String className, File file) {
+    StreamingEnhancer enhancer = generation.streamingEnhancer.get();
+    if (enhancer == null) {
+      Set<String> packages = component.getManifestPackageCache().getCachedPackages();
+      if (packages == null) {
+        // packages are not known yet, the classes are enhanced when compilation finishes
+        return;
       }
-      CompiledFile assocBean = value.toQueryAssocBean();
-      if (assocBean != null) {
-        addEntry(asFileMap, assocBean);
+      // created without locking, a callback losing the race uses the enhancer of the winner
+      ClassLoader libraryLoader = component.getEnhancementContext().getLibraryLoader();
+      StreamingEnhancer created = new StreamingEnhancer(packages, libraryLoader, component.getClassLocationCache(), component.getDependencyGraph(),
+          component.getQueryBeanIndex(), component.getWorkerCount(), component.getDebugLevel(), component.isMetadataResolution(),
+          component.createLog());
+      if (generation.streamingEnhancer.compareAndSet(null, created)) {
+        enhancer = created;
+      } else {
+        created.cancel();
+        enhancer = generation.streamingEnhancer.get();
       }
     }
-
-    new TypeQueryEnhancementTask(compileContext, asFileMap).process();
-    this.compiledClasses = new HashMap<>();
+    enhancer.add(className, file);
   }
 
-  private void addEntry(Map<String, File> asFileMap, CompiledFile value) {
-    asFileMap.put(value.className, value.file);
+  /**
+   * Given a content path and a class file path, resolve the fully qualified class name
+   */
+  private static String resolveClassName(String relativePath) {
+    int extensionPos = relativePath.lastIndexOf('.');
+    return relativePath.substring(0, extensionPos).replace('/', '.');
   }
 
-  public static class CompiledFile {
+  /**
+   * Enhance the classes generated by the build as its last task.
+   */
+  @Override
+  public boolean execute(CompileContext compileContext) {
 
-    private final File file;
+    if (!component.isEnabled()) {
+      // the task stays registered when enhancement is disabled
+      return true;
+    }
+    // following callbacks are for the next build
+    Generation generation = current.getAndSet(new Generation());
+    generation.seal();
+    enhance(generation, false, compileContext, compileContext.getProgressIndicator());
+    return true;
+  }
 
-    private final String className;
-    private final String pkgDir;
-    private final String shortName;
-    private final String outputRoot;
+  @Override
+  public void compilationFinished(final boolean aborted, int errors, int warnings, final CompileContext compileContext) {
 
-    private CompiledFile(File file, String className) {
-      this.file = file;
-      this.className = className;
-      this.outputRoot = null;
-      this.pkgDir = null;
-      this.shortName = null;
+    // the classes of a build that did not run the after tasks (failed or aborted), those in flight are waited for in the background
+    final Generation generation = current.getAndSet(new Generation());
+    generation.seal();
+    if (generation.isEmpty()) {
+      return;
     }
 
-    private CompiledFile(File file, String className, String outputRoot) {
-      this.file = file;
-      this.className = className;
-      this.outputRoot = outputRoot;
+    // collect and enhance in the background (cancellable) rather than blocking the UI thread
+    ProgressManager.getInstance().run(new Task.Backgroundable(compileContext.getProject(), "Ebean query bean enhancement", true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        enhance(generation, aborted, compileContext, indicator);
+      }
+    });
+  }
 
-      int pos = className.lastIndexOf('.');
-      if (pos == -1) {
-        this.pkgDir = null;
-        this.shortName = null;
-      } else {
-        this.pkgDir = className.substring(0, pos).replace('.','/');
-        this.shortName = className.substring(pos+1);
+  /**
+   * Enhance the classes of the sealed generation once the enhancements queued before it have run.
+   */
+  private void enhance(Generation generation, boolean aborted, CompileContext compileContext, ProgressIndicator indicator) {
+
+    try {
+      indicator.setText("Ebean query bean enhancement - waiting for the previous enhancement");
+      while (!enhancementQueue.tryLock(100, TimeUnit.MILLISECONDS)) {
+        indicator.checkCanceled();
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      generation.cancel();
+      return;
 
+    } catch (ProcessCanceledException e) {
+      generation.cancel();
+      compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean Query bean enhancement cancelled, the compiled"
+          + " classes are not enhanced - rebuild to enhance them", null, -1, -1);
+      throw e;
     }
-
-    /**
-     * Return a query bean (or null) based on naming convention.
-     */
-    CompiledFile toQueryBean() {
-      if (pkgDir != null) {
-        return getFile(pkgDir+"/query/Q"+shortName+".class");
+    try {
+      StreamingEnhancer streamingEnhancer = generation.awaitSealed();
+      if (streamingEnhancer != null && aborted) {
+        streamingEnhancer.cancel();
+        streamingEnhancer = null;
       }
-      return null;
+      Map<String, File> compiledClasses = collect(generation);
+      new TypeQueryEnhancementTask(compileContext, compiledClasses, component, streamingEnhancer).process(indicator);
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+    } finally {
+      enhancementQueue.unlock();
     }
+  }
 
-    /**
-     * Return a assoc query bean (or null) based on naming convention.
-     */
-    CompiledFile toQueryAssocBean() {
-      if (pkgDir != null) {
-        return getFile(pkgDir+"/query/assoc/QAssoc"+shortName+".class");
+  /**
+   * Return the existing generated classes (without duplicates) plus the query beans of the compiled
+   * entities and the callers of the changed query beans that were not recompiled.
+   */
+  private Map<String, File> collect(Generation generation) {
+
+    CompiledClassTable compiledClasses = new CompiledClassTable();
+    Map<String, Set<String>> directories = new HashMap<>();
+    for (GeneratedFile generated : generation.files) {
+      File file = new File(generated.outputRoot, generated.relativePath);
+      if (exists(directories, file)) {
+        compiledClasses.put(resolveClassName(generated.relativePath), file);
       }
-      return null;
     }
 
-    private CompiledFile getFile(String assocClassName) {
+    // the compiled classes plus the query beans of the compiled entities
+    QueryBeanIndex queryBeanIndex = component.getQueryBeanIndex();
+    CompiledClassTable asFileMap = new CompiledClassTable();
+    for (Map.Entry<String, File> entry : compiledClasses.entrySet()) {
+      asFileMap.put(entry.getKey(), entry.getValue());
+      asFileMap.putAll(queryBeanIndex.queryBeans(entry.getKey()));
+    }
 
-      File file = new File(outputRoot, assocClassName);
-      if (file.exists()) {
-        return new CompiledFile(file, resolveClassName(assocClassName));
+    // callers of the changed query beans that were not recompiled
+    Map<String, File> callers = component.getDependencyGraph().callers(asFileMap.keySet());
+    for (Map.Entry<String, File> caller : callers.entrySet()) {
+      if (!asFileMap.containsKey(caller.getKey())) {
+        asFileMap.put(caller.getKey(), caller.getValue());
       }
-      return null;
     }
+    return asFileMap;
+  }
 
-    @Override
-    public String toString() {
-      return "CompiledFile[file:" + file +"  className:" + className + "]";
+  /**
+   * Return true if the file exists, listing its directory once for all the files in it.
+   */
+  private static boolean exists(Map<String, Set<String>> directories, File file) {
+    String directory = file.getParent();
+    Set<String> names = directories.get(directory);
+    if (names == null) {
+      String[] list = new File(directory).list();
+      names = (list == null) ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(list));
+      directories.put(directory, names);
     }
+    return names.contains(file.getName());
   }
 }
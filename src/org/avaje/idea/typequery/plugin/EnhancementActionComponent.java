@@ -1,5 +1,7 @@
 package org.avaje.idea.typequery.plugin;
 
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.compiler.CompilerManager;
 import com.intellij.openapi.components.PersistentStateComponent;
 import com.intellij.openapi.components.ProjectComponent;
@@ -7,10 +9,14 @@ import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
 import com.intellij.openapi.components.StoragePathMacros;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.util.xmlb.XmlSerializerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+
 /**
  * Maintains the per project activate flag and setup the compiler stuff appropriate
  */
@@ -25,10 +31,30 @@ public class EnhancementActionComponent implements ProjectComponent, PersistentS
 
   private final EnhancementState enhancementState;
 
+  private final ManifestPackageCache manifestPackageCache;
+
+  private final ClassLocationCache classLocationCache;
+
+  private final ClasspathIndex classpathIndex;
+
+  private final EnhancementContext enhancementContext;
+
+  private QueryBeanDependencyGraph dependencyGraph;
+
+  private QueryBeanIndex queryBeanIndex;
+
+  private ClassOutputWriter outputWriter;
+
+  private MessageBusConnection connection;
+
   public EnhancementActionComponent(Project project) {
     this.project = project;
-    this.compiledFileCollector = new CompiledFileCollector();
+    this.compiledFileCollector = new CompiledFileCollector(this);
     this.enhancementState = new EnhancementState();
+    this.manifestPackageCache = new ManifestPackageCache(project);
+    this.classLocationCache = new ClassLocationCache();
+    this.classpathIndex = new ClasspathIndex(project);
+    this.enhancementContext = new EnhancementContext(classpathIndex);
   }
 
   @Override
@@ -47,11 +73,28 @@ public class EnhancementActionComponent implements ProjectComponent, PersistentS
 
   @Override
   public void projectOpened() {
+    // invalidate cached project information on file and project root changes
+    connection = project.getMessageBus().connect();
+    connection.subscribe(VirtualFileManager.VFS_CHANGES, manifestPackageCache);
+    connection.subscribe(ProjectTopics.PROJECT_ROOTS, manifestPackageCache);
+    connection.subscribe(VirtualFileManager.VFS_CHANGES, classLocationCache);
+    connection.subscribe(ProjectTopics.PROJECT_ROOTS, classLocationCache);
+    connection.subscribe(VirtualFileManager.VFS_CHANGES, classpathIndex);
+    connection.subscribe(ProjectTopics.PROJECT_ROOTS, classpathIndex);
+    // enhance as the last task of each build (skipped while disabled, after tasks can not be removed)
+    getCompilerManager().addAfterTask(compiledFileCollector);
   }
 
   @Override
   public void projectClosed() {
     setEnabled(false);
+    if (connection != null) {
+      connection.disconnect();
+      connection = null;
+    }
+    classLocationCache.clear();
+    classpathIndex.invalidate();
+    enhancementContext.discard();
   }
 
   public boolean isEnabled() {
@@ -67,6 +110,122 @@ public class EnhancementActionComponent implements ProjectComponent, PersistentS
     this.enhancementState.enabled = enabled;
   }
 
+  /**
+   * Return the number of threads used to transform classes (1 means sequential).
+   */
+  public int getWorkerCount() {
+    int workerCount = enhancementState.workerCount;
+    return workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Return true if classes are enhanced in the background as they are generated by the compiler.
+   */
+  public boolean isStreaming() {
+    return enhancementState.streaming;
+  }
+
+  /**
+   * Return the agent debug level (verbosity of the enhancement log).
+   */
+  public int getDebugLevel() {
+    return enhancementState.debugLevel;
+  }
+
+  /**
+   * Return true if the agent resolves classes via their metadata rather than defining them.
+   */
+  public boolean isMetadataResolution() {
+    return enhancementState.metadataResolution;
+  }
+
+  /**
+   * Return the memory budget in bytes for the classes held during enhancement, 0 for no limit
+   * (all the classes are processed in one chunk).
+   */
+  public long getMemoryBudget() {
+    return Math.max(0, enhancementState.memoryBudgetMb) * 1024L * 1024L;
+  }
+
+  /**
+   * Return true if the classes run through the agent are verified after their enhancement.
+   */
+  public boolean isVerify() {
+    return enhancementState.verify;
+  }
+
+  /**
+   * Create the log for an enhancement run.
+   */
+  public EnhancementLog createLog() {
+    return new EnhancementLog(EnhancementLog.DEFAULT_CAPACITY, enhancementState.detailedLog);
+  }
+
+  /**
+   * Return the cache of query bean packages read from the manifest files.
+   */
+  public ManifestPackageCache getManifestPackageCache() {
+    return manifestPackageCache;
+  }
+
+  /**
+   * Return the cache of class files found via PSI lookup.
+   */
+  public ClassLocationCache getClassLocationCache() {
+    return classLocationCache;
+  }
+
+  /**
+   * Return the index of the library classes.
+   */
+  public ClasspathIndex getClasspathIndex() {
+    return classpathIndex;
+  }
+
+  /**
+   * Return the enhancement context reused across builds.
+   */
+  EnhancementContext getEnhancementContext() {
+    return enhancementContext;
+  }
+
+  /**
+   * Return the directory holding the enhancement caches of this project.
+   */
+  public File getCacheDir() {
+    return new File(PathManager.getSystemPath(), "querybean-enhancer/" + project.getLocationHash());
+  }
+
+  /**
+   * Return the graph of the query beans referenced by each class, loading it on first use.
+   */
+  synchronized QueryBeanDependencyGraph getDependencyGraph() {
+    if (dependencyGraph == null) {
+      dependencyGraph = QueryBeanDependencyGraph.load(getCacheDir());
+    }
+    return dependencyGraph;
+  }
+
+  /**
+   * Return the index of the query beans of each entity, loading it on first use.
+   */
+  synchronized QueryBeanIndex getQueryBeanIndex() {
+    if (queryBeanIndex == null) {
+      queryBeanIndex = QueryBeanIndex.load(getCacheDir());
+    }
+    return queryBeanIndex;
+  }
+
+  /**
+   * Return the writer of the enhanced classes, journaling in the cache directory.
+   */
+  synchronized ClassOutputWriter getOutputWriter() {
+    if (outputWriter == null) {
+      outputWriter = new ClassOutputWriter(new File(getCacheDir(), "enhancement.journal"));
+    }
+    return outputWriter;
+  }
+
   private CompilerManager getCompilerManager() {
     return CompilerManager.getInstance(project);
   }
@@ -85,5 +244,42 @@ public class EnhancementActionComponent implements ProjectComponent, PersistentS
 
   public static class EnhancementState {
     public boolean enabled;
+
+    /**
+     * Number of threads used to transform classes, 0 for one per available processor.
+     */
+    public int workerCount;
+
+    /**
+     * Enhance classes in the background as they are generated rather than after compilation finishes.
+     */
+    public boolean streaming;
+
+    /**
+     * The agent debug level, 0 for no debug output.
+     */
+    public int debugLevel = TypeQueryEnhancementTask.DEBUG;
+
+    /**
+     * Resolve the classes the agent needs from their class file metadata rather than defining them
+     * (opt-in, the agent's class loading is the default).
+     */
+    public boolean metadataResolution;
+
+    /**
+     * Memory budget (MB) for the class bytes held during enhancement, classes are processed in chunks
+     * that fit the budget. 0 for no limit.
+     */
+    public int memoryBudgetMb = 256;
+
+    /**
+     * Verify the classes run through the agent, reporting those that should have been enhanced but were not.
+     */
+    public boolean verify;
+
+    /**
+     * Write all the agent output to a log file in the compiler output directory.
+     */
+    public boolean detailedLog;
   }
 }
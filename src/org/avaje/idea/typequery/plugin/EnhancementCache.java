@@ -0,0 +1,241 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On disk cache of the classes in a module output directory that need no (further) enhancement.
+ * <p>
+ * Entries are keyed by className and hold the hash of the class bytes that were last seen on disk
+ * along with the outcome of the enhancement. The whole cache is discarded when the agent version or
+ * the query bean packages change.
+ * </p>
+ */
+class EnhancementCache {
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String AGENT_POM_PROPERTIES = "/META-INF/maven/org.avaje.ebeanorm/querybean-agent/pom.properties";
+
+  /**
+   * The outcome recorded for a class.
+   */
+  enum Outcome {
+
+    /**
+     * The agent made no change to the class bytes.
+     */
+    UNCHANGED,
+
+    /**
+     * The class bytes on disk are the output of the enhancement.
+     */
+    ENHANCED
+  }
+
+  private static class Entry {
+
+    private final byte[] hash;
+
+    private final Outcome outcome;
+
+    private Entry(byte[] hash, Outcome outcome) {
+      this.hash = hash;
+      this.outcome = outcome;
+    }
+  }
+
+  private final File cacheFile;
+
+  private final String outputRoot;
+
+  private final String fingerprint;
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private volatile boolean changed;
+
+  private EnhancementCache(File cacheFile, String outputRoot, String fingerprint) {
+    this.cacheFile = cacheFile;
+    this.outputRoot = outputRoot;
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Load the cache for the given output root from the cache directory.
+   * <p>
+   * An empty cache is returned if there is no cache file or it was written for a different
+   * output root, agent version or set of packages.
+   * </p>
+   */
+  static EnhancementCache load(File cacheDir, String outputRoot, Set<String> packages) {
+
+    String fingerprint = fingerprint(packages);
+    File cacheFile = new File(cacheDir, Integer.toHexString(outputRoot.hashCode()) + ".cache");
+
+    EnhancementCache cache = new EnhancementCache(cacheFile, outputRoot, fingerprint);
+    if (cacheFile.exists()) {
+      try {
+        cache.read();
+      } catch (IOException | RuntimeException e) {
+        // corrupt or partially written, just start again
+        cache.entries.clear();
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Return the fingerprint of the agent version and query bean packages.
+   */
+  static String fingerprint(Set<String> packages) {
+    return agentVersion() + ":" + new TreeSet<>(packages);
+  }
+
+  /**
+   * Return the output root directory (module output directory) given the className and its class file.
+   */
+  static String outputRoot(String className, File file) {
+    String path = file.getPath();
+    int end = path.length() - className.length() - ".class".length();
+    return end > 0 ? path.substring(0, end) : "";
+  }
+
+  /**
+   * Return the version of the query bean agent.
+   */
+  static String agentVersion() {
+    InputStream is = QueryBeanTransformer.class.getResourceAsStream(AGENT_POM_PROPERTIES);
+    if (is == null) {
+      return "unknown";
+    }
+    try {
+      Properties properties = new Properties();
+      properties.load(is);
+      return properties.getProperty("version", "unknown");
+    } catch (IOException e) {
+      return "unknown";
+    } finally {
+      try {
+        is.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Clear the cache (rebuild).
+   */
+  void clear() {
+    entries.clear();
+    changed = true;
+  }
+
+  /**
+   * Return the outcome previously recorded for the class if the class bytes are unchanged since, otherwise null.
+   */
+  Outcome getOutcome(String className, byte[] classBytes) {
+    Entry entry = entries.get(className);
+    if (entry != null && Arrays.equals(entry.hash, hash(classBytes))) {
+      return entry.outcome;
+    }
+    return null;
+  }
+
+  /**
+   * Record that the agent made no change to the class.
+   */
+  void unchanged(String className, byte[] classBytes) {
+    entries.put(className, new Entry(hash(classBytes), Outcome.UNCHANGED));
+    changed = true;
+  }
+
+  /**
+   * Record that the enhanced bytes were written for the class.
+   */
+  void enhanced(String className, byte[] enhancedBytes) {
+    entries.put(className, new Entry(hash(enhancedBytes), Outcome.ENHANCED));
+    changed = true;
+  }
+
+  /**
+   * Write the cache to disk if it has changed.
+   */
+  void save() throws IOException {
+    if (!changed) {
+      return;
+    }
+    File dir = cacheFile.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(outputRoot);
+      out.writeUTF(fingerprint);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        out.writeUTF(mapEntry.getKey());
+        out.writeByte(entry.outcome.ordinal());
+        out.writeByte(entry.hash.length);
+        out.write(entry.hash);
+      }
+    } finally {
+      out.close();
+    }
+    changed = false;
+  }
+
+  private void read() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+    try {
+      if (in.readInt() != FORMAT_VERSION || !outputRoot.equals(in.readUTF()) || !fingerprint.equals(in.readUTF())) {
+        // written by a different version, for a different output root or set of packages
+        changed = true;
+        return;
+      }
+      Outcome[] outcomes = Outcome.values();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String className = in.readUTF();
+        Outcome outcome = outcomes[in.readByte()];
+        byte[] hash = new byte[in.readByte()];
+        in.readFully(hash);
+        entries.put(className, new Entry(hash, outcome));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Return the hash of the class bytes.
+   */
+  private static byte[] hash(byte[] classBytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(classBytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
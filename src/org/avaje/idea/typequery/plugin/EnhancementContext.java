@@ -0,0 +1,80 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Long lived per project enhancement state reused across builds.
+ * <p>
+ * Library classes the agent resolves are defined once in a library class loader (reading only from
+ * the classpath index) which is the parent of the class loader of each build, so a build only reads and defines the project classes again.
+ * The transformer is reused while the query bean packages and settings are unchanged.
+ * </p>
+ * <p>
+ * The library class loader is discarded when the project roots (including the SDK) change or an
+ * indexed library changes, as tracked by the {@link ClasspathIndex} generation.
+ * </p>
+ */
+class EnhancementContext {
+
+  private final ClasspathIndex classpathIndex;
+
+  private IdeaClassLoader libraryLoader;
+
+  /**
+   * The classpath index generation the library loader was created at.
+   */
+  private int libraryGeneration;
+
+  private QueryBeanTransformer transformer;
+
+  private Set<String> transformerPackages;
+
+  private int transformerDebugLevel;
+
+  private boolean transformerMetadataResolution;
+
+  EnhancementContext(ClasspathIndex classpathIndex) {
+    this.classpathIndex = classpathIndex;
+  }
+
+  /**
+   * Return the class loader of the library classes, creating a new one if the libraries have changed.
+   */
+  synchronized ClassLoader getLibraryLoader() {
+    int generation = classpathIndex.getGeneration();
+    if (libraryLoader == null || generation != libraryGeneration) {
+      libraryLoader = new IdeaClassLoader(EnhancementContext.class.getClassLoader(), new ReadActionClassBytesReader(classpathIndex));
+      libraryGeneration = generation;
+    }
+    return libraryLoader;
+  }
+
+  /**
+   * Return the transformer for the packages and settings, reusing the existing one when they are unchanged.
+   * <p>
+   * The transformer holds no per class state so a single instance is shared by all the workers.
+   * </p>
+   */
+  synchronized QueryBeanTransformer getTransformer(Set<String> packages, int debugLevel, boolean metadataResolution) {
+    if (transformer == null || debugLevel != transformerDebugLevel || metadataResolution != transformerMetadataResolution
+        || !packages.equals(transformerPackages)) {
+      transformer = EnhancementEngine.createTransformer(packages, debugLevel, getLibraryLoader(), metadataResolution);
+      transformerPackages = new HashSet<>(packages);
+      transformerDebugLevel = debugLevel;
+      transformerMetadataResolution = metadataResolution;
+    }
+    return transformer;
+  }
+
+  /**
+   * Discard the library classes and transformer (project closed).
+   */
+  synchronized void discard() {
+    libraryLoader = null;
+    transformer = null;
+    transformerPackages = null;
+  }
+}
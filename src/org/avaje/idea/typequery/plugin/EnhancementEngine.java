@@ -0,0 +1,383 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.AgentManifestReader;
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Enhances compiled classes using the query bean agent, independent of the IDE.
+ * <p>
+ * Each class is read, scanned for query bean references and only the candidates are run through
+ * the agent. Classes the agent needs to resolve are read via the {@link ClassBytesReader}, the classes
+ * being transformed are read via the {@link ClassBytesStore} of the build (shared with the reader). This is
+ * used by the IDEA enhancement task and by {@link EnhancerMain} for headless builds.
+ * </p>
+ */
+public class EnhancementEngine {
+
+  /**
+   * Name of the query bean manifest (in META-INF) listing the query bean packages.
+   */
+  public static final String MANIFEST_NAME = "ebean-typequery.mf";
+
+  /**
+   * Callbacks for the classes being enhanced, all methods can be called concurrently by the workers.
+   */
+  public static class Listener {
+
+    /**
+     * A class is about to be enhanced.
+     */
+    public void transforming(String className) {
+    }
+
+    /**
+     * Return false if the class is known to not need running through the agent (already enhanced or unchanged).
+     */
+    public boolean isRequired(String className, File file, byte[] classBytes) {
+      return true;
+    }
+
+    /**
+     * The class was run through the agent which made no change, having resolved all the classes it
+     * needed without error (such that the class needs no change while its bytes are unchanged).
+     */
+    public void unchanged(String className, File file, byte[] classBytes) {
+    }
+  }
+
+  /**
+   * The workers of this engine (used for every transformAll of the build), null when sequential.
+   */
+  private final ForkJoinPool pool;
+
+  private final EnhancementMetrics metrics;
+
+  private final ClassBytesStore store;
+
+  private final QueryBeanReferenceScanner scanner;
+
+  private final IdeaClassLoader classLoader;
+
+  private final InputStreamTransform isTransform;
+
+  /**
+   * The log of the agent output of this run.
+   */
+  private final EnhancementLog log;
+
+  /**
+   * Records the query beans each class references, null when not recording.
+   */
+  private final QueryBeanDependencyGraph dependencyGraph;
+
+  /**
+   * Records the entity of each query bean, null when not recording.
+   */
+  private final QueryBeanIndex queryBeanIndex;
+
+  /**
+   * Verifies the classes run through the agent, null when not verifying.
+   */
+  private EnhancementVerifier verifier;
+
+  /**
+   * Create the engine.
+   *
+   * @param packages     the query bean packages (from the manifests)
+   * @param bytesReader  reads the classes the agent needs to resolve
+   * @param store        reads the classes to transform, shared with the bytes reader for the compiled classes
+   * @param parent       the parent of the class loader used by the agent
+   * @param workerCount  the number of threads used to transform classes (1 means sequential)
+   * @param debugLevel   the agent debug level
+   * @param metadataResolution  true to resolve classes via their metadata rather than defining them
+   * @param log          the log for the agent output
+   * @param metrics      the metrics for this enhancement run
+   */
+  public EnhancementEngine(Set<String> packages, ClassBytesReader bytesReader, ClassBytesStore store, ClassLoader parent, int workerCount,
+                           int debugLevel, boolean metadataResolution, EnhancementLog log, EnhancementMetrics metrics) {
+    this(packages, bytesReader, store, parent, createTransformer(packages, debugLevel, parent, metadataResolution),
+        log, workerCount, metrics, null, null);
+  }
+
+  /**
+   * Create a transformer reading manifests via the class loader.
+   * <p>
+   * The agent output of each transform goes to the log of the run performing it (see {@link TransformOutput}).
+   * </p>
+   *
+   * @param metadataResolution true to resolve classes via their metadata rather than defining them
+   */
+  public static QueryBeanTransformer createTransformer(Set<String> packages, int debugLevel, ClassLoader classLoader, boolean metadataResolution) {
+    String agentArgs = "debug=" + debugLevel;
+    QueryBeanTransformer transformer;
+    if (metadataResolution) {
+      transformer = new MetadataQueryBeanTransformer(agentArgs, classLoader, packages);
+    } else {
+      transformer = new QueryBeanTransformer(agentArgs, classLoader, packages);
+    }
+    transformer.setLogout(TransformOutput.INSTANCE);
+    return transformer;
+  }
+
+  /**
+   * Create the engine using an existing transformer, logging to the given log for this run and
+   * additionally recording the query beans each class references in the dependency graph and the
+   * entity of each query bean in the query bean index.
+   * <p>
+   * The agent resolves classes via the class loader passed to each transform rather than the one
+   * the transformer was created with and logs to the log of the run performing the transform, so a
+   * transformer can be reused across (and shared by overlapping) runs.
+   * </p>
+   */
+  EnhancementEngine(Set<String> packages, ClassBytesReader bytesReader, ClassBytesStore store, ClassLoader parent, QueryBeanTransformer transformer,
+                    EnhancementLog log, int workerCount, EnhancementMetrics metrics, QueryBeanDependencyGraph dependencyGraph,
+                    QueryBeanIndex queryBeanIndex) {
+
+    this.pool = (workerCount > 1) ? new ForkJoinPool(workerCount) : null;
+    this.log = log;
+    this.dependencyGraph = dependencyGraph;
+    this.queryBeanIndex = queryBeanIndex;
+    this.metrics = metrics;
+    this.store = store;
+    this.scanner = new QueryBeanReferenceScanner(packages);
+    this.classLoader = new IdeaClassLoader(parent, bytesReader);
+    this.isTransform = new InputStreamTransform(transformer, classLoader);
+  }
+
+  /**
+   * Set to verify each class run through the agent (after its transform, on the worker thread) with
+   * the time taken reported as the verify phase.
+   */
+  public void setVerify(boolean verify) {
+    this.verifier = verify ? new EnhancementVerifier(scanner) : null;
+  }
+
+  /**
+   * Return the classes that failed verification with the reason, empty when not verifying.
+   */
+  public List<String> getVerifyFailures() {
+    return (verifier == null) ? Collections.<String>emptyList() : verifier.getFailures();
+  }
+
+  /**
+   * Return the workers of this engine to share with the other parallel work of the build (such as
+   * writing the classes), null when the worker count is 1.
+   */
+  public ExecutorService getPool() {
+    return pool;
+  }
+
+  /**
+   * Shut down the workers when the build ends.
+   */
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Read the packages from a query bean manifest file closing the input stream.
+   */
+  public static void readManifest(AgentManifestReader manifestReader, InputStream is) throws IOException {
+    try {
+      Manifest man = new Manifest(is);
+      Attributes attributes = man.getMainAttributes();
+      String packages = attributes.getValue("packages");
+      if (packages != null) {
+        manifestReader.addRaw(packages);
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Transform the classes (keyed by className) returning the transformed bytes of the changed classes.
+   * <p>
+   * The result is in the order of the given classes regardless of the worker count.
+   * </p>
+   */
+  public Map<String, byte[]> transformAll(Map<String, File> classes, Listener listener) throws IOException, IllegalClassFormatException {
+    if (pool == null || classes.size() <= 1) {
+      return transformSequential(classes, listener);
+    } else {
+      return transformParallel(classes, listener);
+    }
+  }
+
+  private Map<String, byte[]> transformSequential(Map<String, File> classes, Listener listener) throws IOException, IllegalClassFormatException {
+
+    Map<String, byte[]> transformedClasses = new LinkedHashMap<>();
+    for (Entry<String, File> entry : classes.entrySet()) {
+      String className = entry.getKey();
+      byte[] transformed = transformClass(className, entry.getValue(), listener);
+      if (transformed != null) {
+        transformedClasses.put(className, transformed);
+      }
+    }
+    return transformedClasses;
+  }
+
+  /**
+   * Transform the classes on the pool of the engine bounded by the worker count.
+   * <p>
+   * Each class is transformed independently so the result (and the order it is written in)
+   * is the same as the sequential transform.
+   * </p>
+   */
+  private Map<String, byte[]> transformParallel(Map<String, File> classes, final Listener listener) throws IOException, IllegalClassFormatException {
+
+    List<Callable<byte[]>> tasks = new ArrayList<>(classes.size());
+    for (final Entry<String, File> entry : classes.entrySet()) {
+      tasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return transformClass(entry.getKey(), entry.getValue(), listener);
+        }
+      });
+    }
+
+    List<Future<byte[]>> futures = pool.invokeAll(tasks);
+
+    Map<String, byte[]> transformedClasses = new LinkedHashMap<>();
+    Iterator<Future<byte[]>> it = futures.iterator();
+    for (String className : classes.keySet()) {
+      byte[] transformed = getTransformed(it.next());
+      if (transformed != null) {
+        transformedClasses.put(className, transformed);
+      }
+    }
+    return transformedClasses;
+  }
+
+  /**
+   * Transform a class returning null if it was not changed or is known to need no enhancement.
+   */
+  private byte[] transformClass(String className, File file, Listener listener) throws IOException, IllegalClassFormatException {
+
+    listener.transforming(className);
+
+    long start = System.nanoTime();
+    byte[] classBytes = store.read(className, file);
+    metrics.addTime(EnhancementMetrics.Phase.READ, System.nanoTime() - start);
+
+    metrics.scanned();
+    boolean candidate;
+    if (dependencyGraph == null) {
+      candidate = scanner.isEnhancementCandidate(classBytes);
+    } else {
+      Set<String> references = new HashSet<>();
+      candidate = scanner.isEnhancementCandidate(classBytes, references);
+      references.remove(className);
+      dependencyGraph.update(className, file, references);
+    }
+    if (queryBeanIndex != null) {
+      // only candidates can be query beans
+      queryBeanIndex.update(className, file, candidate ? scanner.queryBeanEntity(classBytes) : null);
+    }
+    if (!candidate) {
+      // not a query bean and no query bean references, skip running it through the agent
+      metrics.skipped();
+      return null;
+    }
+
+    if (!listener.isRequired(className, file, classBytes)) {
+      // already enhanced or needs no enhancement, skip running it through the agent
+      metrics.cached();
+      verify(className, classBytes);
+      return null;
+    }
+
+    start = System.nanoTime();
+    int misses = classLoader.getMisses();
+    byte[] transformed;
+    boolean agentError;
+    TransformOutput.INSTANCE.begin(log);
+    try {
+      transformed = isTransform.transform(className, classBytes);
+    } finally {
+      agentError = TransformOutput.INSTANCE.end();
+    }
+    long transformNanos = System.nanoTime() - start;
+    metrics.addTime(EnhancementMetrics.Phase.TRANSFORM, transformNanos);
+    metrics.addClassTime(className, transformNanos);
+
+    verify(className, transformed == null ? classBytes : transformed);
+
+    if (transformed != null) {
+      metrics.transformed();
+    } else if (agentError || classLoader.getMisses() != misses) {
+      // the agent failed rather than the class needing no change, not recorded so it is enhanced again
+      metrics.failed();
+    } else {
+      metrics.unchanged();
+      listener.unchanged(className, file, classBytes);
+    }
+    return transformed;
+  }
+
+  /**
+   * Verify the class as written when verifying.
+   */
+  private void verify(String className, byte[] classBytes) {
+    if (verifier != null) {
+      long start = System.nanoTime();
+      if (!verifier.verify(className, classBytes)) {
+        metrics.verifyFailed();
+      }
+      metrics.addTime(EnhancementMetrics.Phase.VERIFY, System.nanoTime() - start);
+      metrics.verified();
+    }
+  }
+
+  /**
+   * Return the result of a transform task unwrapping the cause of any failure.
+   */
+  private byte[] getTransformed(Future<byte[]> future) throws IOException, IllegalClassFormatException {
+    try {
+      return future.get();
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting on query bean enhancement", e);
+
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof IllegalClassFormatException) {
+        throw (IllegalClassFormatException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+}
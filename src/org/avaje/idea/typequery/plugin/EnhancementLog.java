@@ -0,0 +1,126 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects the agent log output of a build (routed to it per transform by {@link TransformOutput}).
+ * <p>
+ * Messages are written lock free into a ring buffer retaining the most recent messages, such that
+ * enhancement workers are not slowed by logging. The retained messages are flushed in batches at the
+ * end of the build and when the detailed log is requested all messages are also kept to be written
+ * to a file.
+ * </p>
+ */
+public class EnhancementLog {
+
+  /**
+   * The default number of messages retained.
+   */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private final AtomicReferenceArray<String> ring;
+
+  private final int mask;
+
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * All the messages when the detailed log is requested, otherwise null.
+   */
+  private final ConcurrentLinkedQueue<String> detail;
+
+  /**
+   * Create retaining at least the given number of messages (rounded up to a power of 2).
+   */
+  public EnhancementLog(int capacity, boolean detailed) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.detail = detailed ? new ConcurrentLinkedQueue<String>() : null;
+  }
+
+  /**
+   * Log a message.
+   */
+  public void log(String message) {
+    long sequence = count.getAndIncrement();
+    ring.set((int) (sequence & mask), message);
+    if (detail != null) {
+      detail.add(message);
+    }
+  }
+
+  /**
+   * Return the total number of messages logged.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Return true if all messages are kept for the detailed log.
+   */
+  public boolean isDetailed() {
+    return detail != null;
+  }
+
+  /**
+   * Return the retained (most recent) messages in the order they were logged.
+   * <p>
+   * This is expected to be called after the logging threads have completed.
+   * </p>
+   */
+  public List<String> getRetained() {
+    long end = count.get();
+    long start = Math.max(0, end - ring.length());
+    List<String> messages = new ArrayList<>((int) (end - start));
+    for (long i = start; i < end; i++) {
+      String message = ring.get((int) (i & mask));
+      if (message != null) {
+        messages.add(message);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Return the messages joined into batches of the given number of lines.
+   */
+  public static List<String> batches(List<String> messages, int linesPerBatch) {
+    List<String> batches = new ArrayList<>();
+    StringBuilder sb = new StringBuilder();
+    int lines = 0;
+    for (String message : messages) {
+      if (lines > 0) {
+        sb.append('\n');
+      }
+      sb.append(message);
+      if (++lines == linesPerBatch) {
+        batches.add(sb.toString());
+        sb.setLength(0);
+        lines = 0;
+      }
+    }
+    if (lines > 0) {
+      batches.add(sb.toString());
+    }
+    return batches;
+  }
+
+  /**
+   * Write all the messages to the given file (when the detailed log is requested).
+   */
+  public void writeDetail(File file) throws IOException {
+    if (detail != null) {
+      Files.write(file.toPath(), detail, StandardCharsets.UTF_8);
+    }
+  }
+}
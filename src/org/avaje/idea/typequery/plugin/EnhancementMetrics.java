@@ -0,0 +1,338 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters for one enhancement run (build).
+ * <p>
+ * Timings of the per class phases (read, transform) are summed across the worker threads, as are
+ * the hits, misses and time of each class bytes reader registered via {@link #reader(String, ClassBytesReader)}.
+ * The metrics are reported as a summary line and can be written as JSON.
+ * </p>
+ */
+public class EnhancementMetrics {
+
+  private static final int SLOWEST_COUNT = 10;
+
+  /**
+   * The timed phases of the enhancement. Reading the classes the agent resolves occurs during (and is included in) transform,
+   * verify is only timed when verifying.
+   */
+  public enum Phase {
+    MANIFESTS("findManifests"),
+    READ("read"),
+    TRANSFORM("transform"),
+    WRITE("write"),
+    VERIFY("verify");
+
+    private final String key;
+
+    Phase(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A class and the time taken to transform it.
+   */
+  private static class ClassTiming {
+
+    private final String className;
+
+    private final long nanos;
+
+    private ClassTiming(String className, long nanos) {
+      this.className = className;
+      this.nanos = nanos;
+    }
+  }
+
+  private static final Comparator<ClassTiming> BY_NANOS = new Comparator<ClassTiming>() {
+    @Override
+    public int compare(ClassTiming o1, ClassTiming o2) {
+      return Long.compare(o1.nanos, o2.nanos);
+    }
+  };
+
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicLong[] phaseNanos = new AtomicLong[Phase.values().length];
+
+  private final AtomicInteger scanned = new AtomicInteger();
+
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  private final AtomicInteger cached = new AtomicInteger();
+
+  private final AtomicInteger streamed = new AtomicInteger();
+
+  private final AtomicInteger transformed = new AtomicInteger();
+
+  private final AtomicInteger unchanged = new AtomicInteger();
+
+  private final AtomicInteger failed = new AtomicInteger();
+
+  private final AtomicInteger identical = new AtomicInteger();
+
+  private final AtomicInteger verified = new AtomicInteger();
+
+  private final AtomicInteger verifyFailures = new AtomicInteger();
+
+  private final List<MetricsClassBytesReader> readers = new CopyOnWriteArrayList<>();
+
+  /**
+   * Min heap of the slowest classes to transform.
+   */
+  private final PriorityQueue<ClassTiming> slowest = new PriorityQueue<>(SLOWEST_COUNT + 1, BY_NANOS);
+
+  private long totalNanos;
+
+  public EnhancementMetrics() {
+    for (int i = 0; i < phaseNanos.length; i++) {
+      phaseNanos[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * Add time spent in the given phase.
+   */
+  public void addTime(Phase phase, long nanos) {
+    phaseNanos[phase.ordinal()].addAndGet(nanos);
+  }
+
+  /**
+   * Record the time taken to transform the class (keeping the slowest).
+   */
+  public void addClassTime(String className, long nanos) {
+    synchronized (slowest) {
+      if (slowest.size() < SLOWEST_COUNT || slowest.peek().nanos < nanos) {
+        slowest.add(new ClassTiming(className, nanos));
+        if (slowest.size() > SLOWEST_COUNT) {
+          slowest.poll();
+        }
+      }
+    }
+  }
+
+  /**
+   * A class was scanned for query bean references.
+   */
+  public void scanned() {
+    scanned.incrementAndGet();
+  }
+
+  /**
+   * A class was skipped as it has no query bean references.
+   */
+  public void skipped() {
+    skipped.incrementAndGet();
+  }
+
+  /**
+   * A class was skipped as it is unchanged since it was last enhanced.
+   */
+  public void cached() {
+    cached.incrementAndGet();
+  }
+
+  /**
+   * A class was enhanced in the background as it was generated.
+   */
+  public void streamed() {
+    streamed.incrementAndGet();
+  }
+
+  /**
+   * A class was transformed by the agent.
+   */
+  public void transformed() {
+    transformed.incrementAndGet();
+  }
+
+  /**
+   * A class was run through the agent which made no change.
+   */
+  public void unchanged() {
+    unchanged.incrementAndGet();
+  }
+
+  /**
+   * The agent failed to enhance a class (an error or a class it needed was not found) returning it unchanged.
+   */
+  public void failed() {
+    failed.incrementAndGet();
+  }
+
+  /**
+   * A transformed class was identical to the class file on disk so was not written.
+   */
+  public void identical() {
+    identical.incrementAndGet();
+  }
+
+  /**
+   * A class run through the agent was verified.
+   */
+  public void verified() {
+    verified.incrementAndGet();
+  }
+
+  /**
+   * A class failed verification (should have been enhanced but was not, or is invalid).
+   */
+  public void verifyFailed() {
+    verifyFailures.incrementAndGet();
+  }
+
+  /**
+   * Return the reader decorated to count its hits, misses and time, reported under the given name.
+   */
+  public MetricsClassBytesReader reader(String name, ClassBytesReader delegate) {
+    MetricsClassBytesReader reader = new MetricsClassBytesReader(name, delegate);
+    readers.add(reader);
+    return reader;
+  }
+
+  /**
+   * Mark the end of the enhancement run.
+   */
+  public void complete() {
+    totalNanos = System.nanoTime() - startNanos;
+  }
+
+  /**
+   * Return the slowest classes, slowest first.
+   */
+  private List<ClassTiming> slowest() {
+    List<ClassTiming> list;
+    synchronized (slowest) {
+      list = new ArrayList<>(slowest);
+    }
+    Collections.sort(list, Collections.reverseOrder(BY_NANOS));
+    return list;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private long phaseMillis(Phase phase) {
+    return millis(phaseNanos[phase.ordinal()].get());
+  }
+
+  /**
+   * Return a one line summary of the metrics.
+   */
+  public String summary() {
+    StringBuilder sb = new StringBuilder(300);
+    sb.append("scanned:").append(scanned)
+        .append(" skipped:").append(skipped)
+        .append(" cached:").append(cached)
+        .append(" streamed:").append(streamed)
+        .append(" transformed:").append(transformed)
+        .append(" unchanged:").append(unchanged)
+        .append(" identical:").append(identical);
+    if (failed.get() > 0) {
+      sb.append(" failed:").append(failed);
+    }
+    if (verified.get() > 0) {
+      sb.append(" verified:").append(verified).append(" verifyFailures:").append(verifyFailures);
+    }
+    sb.append(" in ").append(millis(totalNanos)).append("ms (");
+    for (Phase phase : Phase.values()) {
+      if (phase.ordinal() > 0) {
+        sb.append(' ');
+      }
+      sb.append(phase.key).append(':').append(phaseMillis(phase)).append("ms");
+    }
+    sb.append(')');
+    if (!readers.isEmpty()) {
+      sb.append(" readers");
+      for (MetricsClassBytesReader reader : readers) {
+        sb.append(' ').append(reader);
+      }
+    }
+
+    List<ClassTiming> slowestClasses = slowest();
+    if (!slowestClasses.isEmpty()) {
+      sb.append(" slowest:");
+      for (int i = 0; i < slowestClasses.size() && i < 3; i++) {
+        ClassTiming timing = slowestClasses.get(i);
+        sb.append(i == 0 ? " " : ", ").append(timing.className).append('(').append(millis(timing.nanos)).append("ms)");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Return the metrics as JSON.
+   */
+  public String toJson() {
+    StringBuilder sb = new StringBuilder(1000);
+    sb.append("{\n");
+    sb.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+    sb.append("  \"totalMillis\": ").append(millis(totalNanos)).append(",\n");
+    sb.append("  \"phaseMillis\": {");
+    for (Phase phase : Phase.values()) {
+      sb.append(phase.ordinal() == 0 ? "" : ",").append("\n    \"").append(phase.key).append("\": ").append(phaseMillis(phase));
+    }
+    sb.append("\n  },\n");
+    sb.append("  \"classes\": {\n");
+    sb.append("    \"scanned\": ").append(scanned).append(",\n");
+    sb.append("    \"skipped\": ").append(skipped).append(",\n");
+    sb.append("    \"cached\": ").append(cached).append(",\n");
+    sb.append("    \"streamed\": ").append(streamed).append(",\n");
+    sb.append("    \"transformed\": ").append(transformed).append(",\n");
+    sb.append("    \"unchanged\": ").append(unchanged).append(",\n");
+    sb.append("    \"identical\": ").append(identical).append(",\n");
+    sb.append("    \"failed\": ").append(failed).append(",\n");
+    sb.append("    \"verified\": ").append(verified).append(",\n");
+    sb.append("    \"verifyFailures\": ").append(verifyFailures).append("\n");
+    sb.append("  },\n");
+    sb.append("  \"readers\": {");
+    for (int i = 0; i < readers.size(); i++) {
+      MetricsClassBytesReader reader = readers.get(i);
+      sb.append(i == 0 ? "" : ",").append("\n    \"").append(escape(reader.getName())).append("\": {\"hits\": ")
+          .append(reader.getHits()).append(", \"misses\": ").append(reader.getMisses())
+          .append(", \"millis\": ").append(reader.getMillis()).append('}');
+    }
+    sb.append("\n  },\n");
+    sb.append("  \"slowest\": [");
+    List<ClassTiming> slowestClasses = slowest();
+    for (int i = 0; i < slowestClasses.size(); i++) {
+      ClassTiming timing = slowestClasses.get(i);
+      sb.append(i == 0 ? "" : ",").append("\n    {\"className\": \"").append(escape(timing.className))
+          .append("\", \"micros\": ").append(TimeUnit.NANOSECONDS.toMicros(timing.nanos)).append('}');
+    }
+    sb.append("\n  ]\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Write the metrics as JSON to the given file.
+   */
+  public void writeJson(File file) throws IOException {
+    try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+      writer.write(toJson());
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
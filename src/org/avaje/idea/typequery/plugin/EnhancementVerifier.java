@@ -0,0 +1,133 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.asm.AnnotationVisitor;
+import org.avaje.ebean.typequery.agent.asm.ClassReader;
+import org.avaje.ebean.typequery.agent.asm.ClassVisitor;
+import org.avaje.ebean.typequery.agent.asm.ClassWriter;
+import org.avaje.ebean.typequery.agent.asm.MethodVisitor;
+import org.avaje.ebean.typequery.agent.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Verifies the classes run through the agent such that a class that should have been enhanced but
+ * was not (the agent returning null) is reported rather than shipped.
+ * <p>
+ * The class as written (transformed, or the original when unchanged) is checked that:
+ * </p>
+ * <ul>
+ *   <li>a query bean has the marker annotation the agent adds when enhancing it</li>
+ *   <li>a caller of query beans has no remaining field reads of a query bean (the agent replaces
+ *   them with calls to the generated accessor methods)</li>
+ *   <li>the class file is well formed, it is fully read and written again</li>
+ * </ul>
+ * <p>
+ * The ASM packaged with the agent does not include CheckClassAdapter so the structural check is a
+ * round trip through the ClassReader and ClassWriter (without computing frames). Safe for
+ * concurrent use by the enhancement workers.
+ * </p>
+ */
+class EnhancementVerifier {
+
+  private static final String TYPE_QUERY_BEAN = "Lorg/avaje/ebean/typequery/TypeQueryBean;";
+
+  private static final String ENHANCED_MARKER = "Lorg/avaje/ebean/typequery/AlreadyEnhancedMarker;";
+
+  private final QueryBeanReferenceScanner scanner;
+
+  private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+  EnhancementVerifier(QueryBeanReferenceScanner scanner) {
+    this.scanner = scanner;
+  }
+
+  /**
+   * Verify the class as written returning false (and recording the failure) if it fails.
+   */
+  boolean verify(String className, byte[] classBytes) {
+    String failure;
+    try {
+      ClassWriter writer = new ClassWriter(0);
+      Checker checker = new Checker(writer);
+      new ClassReader(classBytes).accept(checker, 0);
+      writer.toByteArray();
+      failure = checker.failure();
+    } catch (RuntimeException e) {
+      failure = "invalid class file " + e;
+    }
+    if (failure == null) {
+      return true;
+    }
+    failures.add(className + " " + failure);
+    return false;
+  }
+
+  /**
+   * Return the failures (className and reason) recorded so far.
+   */
+  List<String> getFailures() {
+    return new ArrayList<>(failures);
+  }
+
+  /**
+   * Checks the class as it is copied to the writer.
+   */
+  private class Checker extends ClassVisitor {
+
+    private String className;
+
+    private boolean queryBean;
+
+    private boolean enhancedMarker;
+
+    /**
+     * The first query bean field read found, null when none.
+     */
+    private String fieldRead;
+
+    private Checker(ClassVisitor cv) {
+      super(Opcodes.ASM5, cv);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+      className = name;
+      super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      if (TYPE_QUERY_BEAN.equals(desc)) {
+        queryBean = true;
+      } else if (ENHANCED_MARKER.equals(desc)) {
+        enhancedMarker = true;
+      }
+      return super.visitAnnotation(desc, visible);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, final String methodName, String desc, String signature, String[] exceptions) {
+      return new MethodVisitor(Opcodes.ASM5, super.visitMethod(access, methodName, desc, signature, exceptions)) {
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String fieldDesc) {
+          if (fieldRead == null && opcode == Opcodes.GETFIELD && !owner.equals(className) && scanner.isQueryBean(owner)) {
+            fieldRead = owner.replace('/', '.') + "." + name + " in " + methodName;
+          }
+          super.visitFieldInsn(opcode, owner, name, fieldDesc);
+        }
+      };
+    }
+
+    /**
+     * Return the reason the class fails verification or null if it passes.
+     */
+    private String failure() {
+      if (queryBean) {
+        return enhancedMarker ? null : "query bean not enhanced (no enhanced marker)";
+      }
+      return (fieldRead == null) ? null : "not enhanced, reads query bean field " + fieldRead;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.AgentManifestReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Command line enhancement of compiled output directories without the IDE (headless builds).
+ * <p>
+ * All the classes in the output directories are enhanced in place, in parallel, using the same
+ * {@link EnhancementEngine} as the plugin. The query bean packages are read from the
+ * META-INF/ebean-typequery.mf manifests of the output directories and classpath unless given.
+ * </p>
+ * <pre>
+ *   java -cp querybean-agent.jar:typequery-idea-enhancer.jar org.avaje.idea.typequery.plugin.EnhancerMain
+ *     [-cp classpath] [-packages a.b,c.d] [-threads n] [-debug n] [-metadata] [-verify] [-metrics file.json] [-log file] outputDir ...
+ * </pre>
+ * <p>
+ * The classes the agent resolves are defined in a class loader unless <code>-metadata</code> is given
+ * in which case they are read as class file metadata. With <code>-verify</code>
+ * the enhanced classes are verified, exiting with status 1 if any class should have been enhanced but was not.
+ * </p>
+ */
+public class EnhancerMain {
+
+  private final List<File> outputDirs = new ArrayList<>();
+
+  private final List<File> classpath = new ArrayList<>();
+
+  private final Set<String> packages = new LinkedHashSet<>();
+
+  private int workerCount = Runtime.getRuntime().availableProcessors();
+
+  private int debugLevel;
+
+  private boolean metadataResolution;
+
+  private boolean verify;
+
+  private File metricsFile;
+
+  private File logFile;
+
+  public static void main(String[] args) {
+    EnhancerMain main = new EnhancerMain();
+    try {
+      if (!main.parse(args)) {
+        usage();
+        System.exit(2);
+      }
+      if (!main.run()) {
+        System.exit(1);
+      }
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: EnhancerMain [-cp classpath] [-packages a.b,c.d] [-threads n] [-debug n] [-metadata] [-verify] [-metrics file.json] [-log file] outputDir ...");
+  }
+
+  private boolean parse(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if ("-metadata".equals(arg)) {
+        metadataResolution = true;
+        continue;
+      }
+      if ("-verify".equals(arg)) {
+        verify = true;
+        continue;
+      }
+      if (arg.startsWith("-") && i + 1 == args.length) {
+        return false;
+      }
+      if ("-cp".equals(arg)) {
+        for (String entry : args[++i].split(File.pathSeparator)) {
+          if (!entry.isEmpty()) {
+            classpath.add(new File(entry));
+          }
+        }
+      } else if ("-packages".equals(arg)) {
+        for (String pkg : args[++i].split(",")) {
+          if (!pkg.trim().isEmpty()) {
+            packages.add(pkg.trim());
+          }
+        }
+      } else if ("-threads".equals(arg)) {
+        workerCount = Integer.parseInt(args[++i]);
+      } else if ("-debug".equals(arg)) {
+        debugLevel = Integer.parseInt(args[++i]);
+      } else if ("-metrics".equals(arg)) {
+        metricsFile = new File(args[++i]);
+      } else if ("-log".equals(arg)) {
+        logFile = new File(args[++i]);
+      } else if (arg.startsWith("-")) {
+        return false;
+      } else {
+        outputDirs.add(new File(arg));
+      }
+    }
+    return !outputDirs.isEmpty();
+  }
+
+  /**
+   * Enhance the classes returning false if verifying and any class failed verification.
+   */
+  private boolean run() throws Exception {
+
+    EnhancementMetrics metrics = new EnhancementMetrics();
+    EnhancementLog log = new EnhancementLog(EnhancementLog.DEFAULT_CAPACITY, logFile != null);
+
+    List<File> searchPath = new ArrayList<>(outputDirs);
+    searchPath.addAll(classpath);
+
+    if (packages.isEmpty()) {
+      long start = System.nanoTime();
+      packages.addAll(findManifests(searchPath));
+      metrics.addTime(EnhancementMetrics.Phase.MANIFESTS, System.nanoTime() - start);
+    }
+    System.out.println("Ebean Query bean enhancement using packages:" + packages);
+
+    Map<String, File> classes = new LinkedHashMap<>();
+    for (File outputDir : outputDirs) {
+      collectClasses(outputDir, classes);
+    }
+
+    List<String> verifyFailures;
+    EnhancementEngine engine = null;
+    ClasspathClassBytesReader reader = new ClasspathClassBytesReader(searchPath);
+    try {
+      // the output classes are read once, shared by their transform and by resolving them
+      ClassBytesStore store = new ClassBytesStore();
+      ClassBytesReader bytesReader = new ClassBytesReaderChain(
+          metrics.reader("compiled", new CompiledClassBytesReader(classes, store)),
+          metrics.reader("classpath", reader));
+      engine = new EnhancementEngine(packages, bytesReader, store, EnhancerMain.class.getClassLoader(), workerCount, debugLevel,
+          metadataResolution, log, metrics);
+      engine.setVerify(verify);
+      Map<String, byte[]> transformed = engine.transformAll(classes, new EnhancementEngine.Listener());
+      verifyFailures = engine.getVerifyFailures();
+
+      long start = System.nanoTime();
+      // written in parallel and committed by atomic renames (no journal as there is no cache directory)
+      new ClassOutputWriter(null).write(transformed, classes, engine.getPool(), new ClassOutputWriter.Listener());
+      metrics.addTime(EnhancementMetrics.Phase.WRITE, System.nanoTime() - start);
+
+    } finally {
+      if (engine != null) {
+        engine.shutdown();
+      }
+      reader.close();
+      for (String message : log.getRetained()) {
+        System.out.println(message);
+      }
+      if (logFile != null) {
+        log.writeDetail(logFile);
+      }
+    }
+
+    metrics.complete();
+    System.out.println("Ebean Query bean enhancement complete! " + metrics.summary());
+    if (metricsFile != null) {
+      metrics.writeJson(metricsFile);
+    }
+    for (String failure : verifyFailures) {
+      System.out.println("Verify failed " + failure);
+    }
+    return verifyFailures.isEmpty();
+  }
+
+  /**
+   * Read the query bean packages from the manifests in the given directories and jars.
+   */
+  private static Set<String> findManifests(List<File> searchPath) throws IOException {
+
+    AgentManifestReader manifestReader = new AgentManifestReader();
+    String path = "META-INF/" + EnhancementEngine.MANIFEST_NAME;
+    for (File entry : searchPath) {
+      if (entry.isDirectory()) {
+        File mf = new File(entry, path);
+        if (mf.isFile()) {
+          EnhancementEngine.readManifest(manifestReader, new FileInputStream(mf));
+        }
+      } else if (entry.isFile()) {
+        try (JarFile jar = new JarFile(entry)) {
+          JarEntry mf = jar.getJarEntry(path);
+          if (mf != null) {
+            EnhancementEngine.readManifest(manifestReader, jar.getInputStream(mf));
+          }
+        }
+      }
+    }
+    return manifestReader.getPackages();
+  }
+
+  /**
+   * Add the class files in the output directory keyed by className.
+   */
+  private static void collectClasses(File outputDir, final Map<String, File> classes) throws IOException {
+
+    final Path root = outputDir.toPath();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+        if (relativePath.endsWith(".class") && !relativePath.startsWith("META-INF/")) {
+          String className = relativePath.substring(0, relativePath.length() - ".class".length()).replace('/', '.');
+          classes.put(className, file.toFile());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -1,6 +1,5 @@
 package org.avaje.idea.typequery.plugin;
 
-import com.google.common.io.Files;
 import com.intellij.openapi.compiler.CompileContext;
 import com.intellij.openapi.compiler.CompilerMessageCategory;
 import com.intellij.openapi.module.Module;
@@ -9,12 +8,15 @@ import com.intellij.psi.JavaPsiFacade;
 import com.intellij.psi.PsiClass;
 import com.intellij.psi.search.GlobalSearchScope;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.Map;
 
 /**
- * Lookup a class file by given class name.
+ * Lookup a class file by given class name via a PSI search of the project (and its dependencies).
+ * <p>
+ * This is the last (and slowest) link of the reader chain, the classes of the build and library
+ * classes being found by the links in front of it. Results including misses are cached in the
+ * {@link ClassLocationCache}. PSI access must be made inside a read action.
+ * </p>
  *
  * @author Mario Ivankovits, mario@ops.co.at
  * @author yevgenyk - Updated 28/04/2014 for IDEA 13
@@ -23,32 +25,21 @@ public class IdeaClassBytesReader implements ClassBytesReader {
 
   private final CompileContext compileContext;
 
-  private final Map<String, File> compiledClasses;
+  private final ClassLocationCache classLocationCache;
 
-  public IdeaClassBytesReader(CompileContext compileContext, Map<String, File> compiledClasses) {
+  public IdeaClassBytesReader(CompileContext compileContext, ClassLocationCache classLocationCache) {
     this.compileContext = compileContext;
-    this.compiledClasses = compiledClasses;
+    this.classLocationCache = classLocationCache;
   }
 
   @Override
   public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
-    // Try to fetch the class from the list of files that we know was compiled during this run.
-    final String className = classNamePath.replace('/', '.');
-    final File compiledFile = compiledClasses.get(className);
-    if (compiledFile != null) {
-      try {
-        return Files.toByteArray(compiledFile);
-      } catch (IOException e) {
-        warn("Error reading file contents: " + compiledFile);
-        return null;
-      }
-    }
-
-    // The class wasn't compiled on this run, look it up from the project structure (or it's dependencies).
-    return lookupClassBytesFallback(classNamePath);
-  }
 
-  private byte[] lookupClassBytesFallback(String classNamePath) {
+    ClassLocationCache.Entry cached = classLocationCache.get(classNamePath);
+    if (cached != null && cached.isMiss()) {
+      // not found on a previous lookup
+      return null;
+    }
 
     // Create a Psi compatible className
     String className = classNamePath.replace('/', '.').replace('$', '.');
@@ -58,30 +49,44 @@ public class IdeaClassBytesReader implements ClassBytesReader {
 
     PsiClass psiClass = psiFacade.findClass(className, searchScope);
     if (psiClass == null) {
-      warn("Couldn't find PsiClass for class: " + className);
-      return null;
+      return miss(classNamePath, "Couldn't find PsiClass for class: " + className);
     }
 
     VirtualFile containingFile = psiClass.getContainingFile().getVirtualFile();
     if (containingFile == null) {
-      warn("Couldn't find containing file for PsiClass: " + psiClass);
-      return null;
+      return miss(classNamePath, "Couldn't find containing file for PsiClass: " + psiClass);
     }
 
     VirtualFile classFile = getClassFile(containingFile, classNamePath);
     if (classFile == null) {
-      warn("Couldn't find .class file for class: " + className);
-      return null;
+      return miss(classNamePath, "Couldn't find .class file for class: " + className);
     }
+    return read(classNamePath, classFile);
+  }
 
+  /**
+   * Read and cache the bytes of the class file.
+   */
+  private byte[] read(String classNamePath, VirtualFile classFile) {
     try {
-      return classFile.contentsToByteArray();
+      byte[] bytes = classFile.contentsToByteArray();
+      classLocationCache.put(classNamePath, classFile, bytes);
+      return bytes;
     } catch (IOException e) {
       warn("Error reading file contents: " + classFile);
       return null;
     }
   }
 
+  /**
+   * Cache and warn (once) that the class could not be found.
+   */
+  private byte[] miss(String classNamePath, String message) {
+    classLocationCache.putMiss(classNamePath);
+    warn(message);
+    return null;
+  }
+
   private VirtualFile getClassFile(VirtualFile containingFile, String classNamePath) {
 
     Module module = compileContext.getModuleByFile(containingFile);
@@ -2,31 +2,59 @@ package org.avaje.idea.typequery.plugin;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class loader used during enhancement.
+ * <p>
+ * Registered as parallel capable such that enhancement workers can resolve different classes
+ * concurrently, locking per class name rather than on the class loader.
+ * </p>
+ * <p>
+ * With metadata resolution the agent reads {@link ClassMetadata} via {@link #getClassMetadata(String)}
+ * instead of loading classes, so no classes are defined.
+ * </p>
  */
 public final class IdeaClassLoader extends ClassLoader {
 
+  static {
+    registerAsParallelCapable();
+  }
+
   /**
    * The implementation for loading raw byte code.
    */
-  private final IdeaClassBytesReader bytesReader;
+  private final ClassBytesReader bytesReader;
 
   /**
    * Local cache of defined classes.
    */
   private final ConcurrentHashMap<String, Class<?>> definedClasses = new ConcurrentHashMap<>();
 
+  /**
+   * Local cache of class metadata keyed by internal name.
+   */
+  private final ConcurrentHashMap<String, ClassMetadata> classMetadata = new ConcurrentHashMap<>();
+
   private final ClassLoader parent;
 
+  /**
+   * The number of classes each thread failed to resolve (read no bytes for).
+   */
+  private final ThreadLocal<int[]> misses = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
   /**
    * Construct with a parent classLoader and raw bytecodeLoader.
    */
-  public  IdeaClassLoader(ClassLoader parent, IdeaClassBytesReader bytesReader) {
+  public  IdeaClassLoader(ClassLoader parent, ClassBytesReader bytesReader) {
     super(parent);
     this.parent = parent;
     this.bytesReader = bytesReader;
@@ -39,16 +67,23 @@ public final class IdeaClassLoader extends ClassLoader {
 
     } catch (ClassNotFoundException e) {
 
-      synchronized (this) {
-        Class<?> aClass = definedClasses.get(name);
+      Class<?> aClass = definedClasses.get(name);
+      if (aClass != null) {
+        // return cache hit without locking
+        return aClass;
+      }
+
+      synchronized (getClassLoadingLock(name)) {
+        aClass = definedClasses.get(name);
         if (aClass != null) {
-          // return cache hit
+          // defined by another thread while waiting on the lock
           return aClass;
         }
 
         // load the raw bytes
         byte[] bytes = bytesReader.getClassBytes(name.replace('.', '/'), parent);
         if (bytes == null) {
+          misses.get()[0]++;
           throw new ClassNotFoundException(name);
         }
 
@@ -60,6 +95,61 @@ public final class IdeaClassLoader extends ClassLoader {
     }
   }
 
+  /**
+   * Return the metadata of the class (internal name) or null if the class is not found.
+   * <p>
+   * Parent first as for loading classes. The metadata of classes found by the parent class loader
+   * (such as JDK classes) is read from their class file resource.
+   * </p>
+   */
+  ClassMetadata getClassMetadata(String classNamePath) {
+
+    ClassMetadata metadata = classMetadata.get(classNamePath);
+    if (metadata != null) {
+      return metadata;
+    }
+    if (parent instanceof IdeaClassLoader) {
+      // cached by the parent
+      metadata = ((IdeaClassLoader) parent).getClassMetadata(classNamePath);
+      if (metadata != null) {
+        return metadata;
+      }
+    } else {
+      metadata = readParentMetadata(classNamePath);
+    }
+    if (metadata == null) {
+      byte[] bytes = bytesReader.getClassBytes(classNamePath, parent);
+      if (bytes == null) {
+        misses.get()[0]++;
+        return null;
+      }
+      metadata = ClassMetadata.read(bytes);
+    }
+    ClassMetadata existing = classMetadata.putIfAbsent(classNamePath, metadata);
+    return existing != null ? existing : metadata;
+  }
+
+  /**
+   * Return the number of classes the current thread failed to resolve, such that comparing the count
+   * before and after a transform tells if the transform needed a class that was not found.
+   */
+  int getMisses() {
+    return misses.get()[0];
+  }
+
+  private ClassMetadata readParentMetadata(String classNamePath) {
+    ClassLoader loader = (parent != null) ? parent : ClassLoader.getSystemClassLoader();
+    InputStream is = loader.getResourceAsStream(classNamePath + ".class");
+    if (is == null) {
+      return null;
+    }
+    try (InputStream in = is) {
+      return ClassMetadata.read(InputStreamTransform.readBytes(in));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
   @Override
   public Enumeration<URL> getResources(String name) throws IOException {
     return super.getResources(name);
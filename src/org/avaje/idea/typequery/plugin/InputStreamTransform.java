@@ -2,11 +2,7 @@ package org.avaje.idea.typequery.plugin;
 
 import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.IllegalClassFormatException;
@@ -30,43 +26,37 @@ public class InputStreamTransform {
    * Transform a file.
    */
   public byte[] transform(String className, File file) throws IOException, IllegalClassFormatException {
-    try {
-      return transform(className, new FileInputStream(file));
-
-    } catch (FileNotFoundException e) {
-      throw new RuntimeException(e);
-    }
+    return transform(className, readBytes(file));
   }
 
   /**
-   * Transform a input stream.
+   * Transform a input stream closing it afterwards.
    */
   public byte[] transform(String className, InputStream is) throws IOException, IllegalClassFormatException {
 
-    try {
-      byte[] classBytes = readBytes(is);
-      return transformer.transform(classLoader, className, null, null, classBytes);
-
-    } finally {
-      if (is != null) {
-        is.close();
-      }
+    try (InputStream in = is) {
+      return transform(className, readBytes(in));
     }
   }
 
-  public static byte[] readBytes(InputStream is) throws IOException {
-
-    BufferedInputStream bis = new BufferedInputStream(is);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+  /**
+   * Transform the class bytes returning null if the class was not changed.
+   */
+  public byte[] transform(String className, byte[] classBytes) throws IllegalClassFormatException {
+    return transformer.transform(classLoader, className, null, null, classBytes);
+  }
 
-    byte[] buf = new byte[1028];
+  /**
+   * Read the bytes of a file.
+   */
+  public static byte[] readBytes(File file) throws IOException {
+    return ClassFileReader.read(file);
+  }
 
-    int len;
-    while ((len = bis.read(buf, 0, buf.length)) > -1) {
-      baos.write(buf, 0, len);
-    }
-    baos.flush();
-    baos.close();
-    return baos.toByteArray();
+  /**
+   * Read the bytes of an input stream (without closing it).
+   */
+  public static byte[] readBytes(InputStream is) throws IOException {
+    return ClassFileReader.read(is);
   }
 }
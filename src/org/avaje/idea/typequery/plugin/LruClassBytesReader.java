@@ -0,0 +1,62 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the class bytes found by another reader, evicting the least recently used classes when
+ * the total bytes held exceeds the limit. Classes not found are not cached.
+ */
+public class LruClassBytesReader implements ClassBytesReader {
+
+  private final ClassBytesReader delegate;
+
+  private final long maxBytes;
+
+  private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(256, 0.75f, true);
+
+  private long bytes;
+
+  public LruClassBytesReader(ClassBytesReader delegate, long maxBytes) {
+    this.delegate = delegate;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    synchronized (cache) {
+      byte[] cached = cache.get(classNamePath);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    // read outside the lock, concurrent reads of the same class are harmless
+    byte[] read = delegate.getClassBytes(classNamePath, classLoader);
+    if (read != null && read.length <= maxBytes) {
+      synchronized (cache) {
+        byte[] previous = cache.put(classNamePath, read);
+        bytes += read.length - (previous == null ? 0 : previous.length);
+        evict();
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Return the number of classes cached.
+   */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getValue().length;
+      it.remove();
+    }
+  }
+}
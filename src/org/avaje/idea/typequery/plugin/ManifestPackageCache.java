@@ -0,0 +1,158 @@
+package org.avaje.idea.typequery.plugin;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.compiler.CompileContext;
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.search.FilenameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import org.avaje.ebean.typequery.agent.AgentManifestReader;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per project cache of the query bean packages read from the ebean-typequery.mf manifest files.
+ * <p>
+ * The packages are found once and then reused until a manifest file changes (VFS events) or
+ * the project roots change.
+ * </p>
+ */
+public class ManifestPackageCache implements BulkFileListener, ModuleRootListener {
+
+  private final Project project;
+
+  /**
+   * Incremented on each invalidation such that a concurrently computed result is not cached.
+   */
+  private final AtomicInteger modCount = new AtomicInteger();
+
+  private volatile Set<String> packages;
+
+  public ManifestPackageCache(Project project) {
+    this.project = project;
+  }
+
+  /**
+   * Return the query bean packages, reading the manifests if they are not already cached.
+   */
+  public Set<String> getPackages(final CompileContext compileContext) {
+
+    Set<String> cached = packages;
+    if (cached != null) {
+      return cached;
+    }
+
+    int count = modCount.get();
+    Set<String> found = ApplicationManager.getApplication().runReadAction(new Computable<Set<String>>() {
+      @Override
+      public Set<String> compute() {
+        return findManifests(compileContext);
+      }
+    });
+    found = Collections.unmodifiableSet(found);
+    if (modCount.get() == count) {
+      packages = found;
+    }
+    return found;
+  }
+
+  /**
+   * Return the cached packages or null if they have not been read since the last invalidation.
+   */
+  public Set<String> getCachedPackages() {
+    return packages;
+  }
+
+  /**
+   * Clear the cached packages such that they are read again for the next build.
+   */
+  public void invalidate() {
+    modCount.incrementAndGet();
+    packages = null;
+  }
+
+  /**
+   * Find the type query manifest files externally to the agent as classLoader getResources does
+   * not work for the agent when run in the IDEA plugin.
+   *
+   * @return The packages containing type query beans (this is required for the enhancement).
+   */
+  private Set<String> findManifests(CompileContext compileContext) {
+
+    AgentManifestReader manifestReader = new AgentManifestReader();
+
+    // read from the module output directories,  we do this as generated
+    // ebean-typequery.mf is often not found via search
+    ModuleManager moduleManager = ModuleManager.getInstance(project);
+    Module[] modules = moduleManager.getModules();
+
+    for (Module module : modules) {
+      VirtualFile outputDirectory = compileContext.getModuleOutputDirectory(module);
+      if (outputDirectory != null) {
+        VirtualFile mf = outputDirectory.findFileByRelativePath("META-INF/" + EnhancementEngine.MANIFEST_NAME);
+        if (mf != null) {
+          try {
+            EnhancementEngine.readManifest(manifestReader, mf.getInputStream());
+          } catch (IOException e) {
+            compileContext.addMessage(CompilerMessageCategory.ERROR, "Error reading META-INF/ebean-typequery.mf from " + outputDirectory + " error:" + e, null, -1, -1);
+          }
+        }
+      }
+    }
+
+    GlobalSearchScope searchScope = GlobalSearchScope.allScope(project);
+
+    // read ebean-typequery.mf via project search
+    PsiFile[] files = FilenameIndex.getFilesByName(project, EnhancementEngine.MANIFEST_NAME, searchScope);
+    for (int i = 0; i < files.length; i++) {
+      manifestReader.addRaw(files[i].getText());
+    }
+    return manifestReader.getPackages();
+  }
+
+  @Override
+  public void before(List<? extends VFileEvent> events) {
+  }
+
+  @Override
+  public void after(List<? extends VFileEvent> events) {
+    for (VFileEvent event : events) {
+      if (isManifest(event)) {
+        invalidate();
+        return;
+      }
+    }
+  }
+
+  private boolean isManifest(VFileEvent event) {
+    String path = event.getPath();
+    if (path != null && path.endsWith("/" + EnhancementEngine.MANIFEST_NAME)) {
+      return true;
+    }
+    // renamed from the manifest name
+    return event instanceof VFilePropertyChangeEvent && EnhancementEngine.MANIFEST_NAME.equals(((VFilePropertyChangeEvent) event).getOldValue());
+  }
+
+  @Override
+  public void beforeRootsChange(ModuleRootEvent event) {
+  }
+
+  @Override
+  public void rootsChanged(ModuleRootEvent event) {
+    invalidate();
+  }
+}
@@ -0,0 +1,66 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.asm.ClassWriter;
+
+/**
+ * ClassWriter that computes common super classes from {@link ClassMetadata} rather than loading
+ * (and defining) the classes, with the same result as the class loader based implementation.
+ */
+class MetadataClassWriter extends ClassWriter {
+
+  private static final String OBJECT = "java/lang/Object";
+
+  private final IdeaClassLoader classLoader;
+
+  MetadataClassWriter(int flags, IdeaClassLoader classLoader) {
+    super(flags);
+    this.classLoader = classLoader;
+  }
+
+  @Override
+  protected String getCommonSuperClass(String type1, String type2) {
+    ClassMetadata c = metadata(type1);
+    ClassMetadata d = metadata(type2);
+    if (isAssignableFrom(type1, d)) {
+      return type1;
+    }
+    if (isAssignableFrom(type2, c)) {
+      return type2;
+    }
+    if (c.isInterface() || d.isInterface()) {
+      return OBJECT;
+    }
+    do {
+      c = metadata(c.getSuperName());
+    } while (!isAssignableFrom(c.getName(), d));
+    return c.getName();
+  }
+
+  /**
+   * Return true if the type is the class, one of its super classes or one of its interfaces.
+   */
+  private boolean isAssignableFrom(String type, ClassMetadata metadata) {
+    if (type.equals(metadata.getName()) || OBJECT.equals(type)) {
+      return true;
+    }
+    String superName = metadata.getSuperName();
+    if (superName != null && isAssignableFrom(type, metadata(superName))) {
+      return true;
+    }
+    for (String interfaceName : metadata.getInterfaces()) {
+      if (isAssignableFrom(type, metadata(interfaceName))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ClassMetadata metadata(String type) {
+    ClassMetadata metadata = classLoader.getClassMetadata(type);
+    if (metadata == null) {
+      // same failure as when the class can not be loaded
+      throw new RuntimeException(new ClassNotFoundException(type.replace('/', '.')).toString());
+    }
+    return metadata;
+  }
+}
@@ -0,0 +1,89 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.AlreadyEnhancedException;
+import org.avaje.ebean.typequery.agent.EnhanceContext;
+import org.avaje.ebean.typequery.agent.NoEnhancementRequiredException;
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+import org.avaje.ebean.typequery.agent.TypeQueryClassAdapter;
+import org.avaje.ebean.typequery.agent.asm.ClassReader;
+import org.avaje.ebean.typequery.agent.asm.ClassWriter;
+
+import java.io.PrintStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Set;
+
+/**
+ * Query bean transformer that resolves the classes the agent needs via {@link ClassMetadata}
+ * (metadata resolution) rather than defining them in the {@link IdeaClassLoader}.
+ * <p>
+ * This performs the same enhancement as the agent's transformer with the class writer replaced by
+ * {@link MetadataClassWriter}. Transforms with other class loaders use the agent's implementation.
+ * </p>
+ */
+class MetadataQueryBeanTransformer extends QueryBeanTransformer {
+
+  private final EnhanceContext enhanceContext;
+
+  MetadataQueryBeanTransformer(String agentArgs, ClassLoader classLoader, Set<String> packages) {
+    super(agentArgs, classLoader, packages);
+    this.enhanceContext = new EnhanceContext(agentArgs, classLoader, packages);
+  }
+
+  @Override
+  public void setLogout(PrintStream logout) {
+    super.setLogout(logout);
+    enhanceContext.setLogout(logout);
+  }
+
+  @Override
+  public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                          ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+
+    if (!(loader instanceof IdeaClassLoader)) {
+      return super.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+    if (enhanceContext.isIgnoreClass(className)) {
+      enhanceContext.log(8, "ignore class ", className);
+      return null;
+    }
+    enhanceContext.log(8, "look at ", className);
+    try {
+      return enhancement((IdeaClassLoader) loader, classfileBuffer);
+
+    } catch (NoEnhancementRequiredException e) {
+      enhanceContext.log(8, "No Enhancement required ", e.getMessage());
+      return null;
+
+    } catch (Exception e) {
+      enhanceContext.log(e);
+      return null;
+    }
+  }
+
+  private byte[] enhancement(IdeaClassLoader loader, byte[] classBytes) {
+
+    ClassReader reader = new ClassReader(classBytes);
+    ClassWriter writer = new MetadataClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, loader);
+    TypeQueryClassAdapter adapter = new TypeQueryClassAdapter(writer, enhanceContext);
+    try {
+      reader.accept(adapter, ClassReader.EXPAND_FRAMES);
+      if (enhanceContext.isLog(9)) {
+        enhanceContext.log(reader.getClassName(), "... completed");
+      }
+      return writer.toByteArray();
+
+    } catch (AlreadyEnhancedException e) {
+      if (enhanceContext.isLog(1)) {
+        enhanceContext.log(reader.getClassName(), "already enhanced");
+      }
+      return null;
+
+    } catch (NoEnhancementRequiredException e) {
+      if (enhanceContext.isLog(9)) {
+        enhanceContext.log(reader.getClassName(), "... skipping, no enhancement required");
+      }
+      return null;
+    }
+  }
+}
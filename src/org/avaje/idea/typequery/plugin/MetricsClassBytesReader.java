@@ -0,0 +1,69 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the hits (class found) and misses of another reader and the time spent in it.
+ */
+public class MetricsClassBytesReader implements ClassBytesReader {
+
+  private final String name;
+
+  private final ClassBytesReader delegate;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong nanos = new AtomicLong();
+
+  public MetricsClassBytesReader(String name, ClassBytesReader delegate) {
+    this.name = name;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    long start = System.nanoTime();
+    byte[] bytes = delegate.getClassBytes(classNamePath, classLoader);
+    nanos.addAndGet(System.nanoTime() - start);
+    if (bytes == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return bytes;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Return the time spent reading classes in nanos (summed across threads).
+   */
+  public long getNanos() {
+    return nanos.get();
+  }
+
+  /**
+   * Return the time spent reading classes in millis (summed across threads).
+   */
+  public long getMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+  }
+
+  @Override
+  public String toString() {
+    return name + ":" + hits + "/" + misses + "(" + getMillis() + "ms)";
+  }
+}
@@ -0,0 +1,220 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent per project graph of the query bean types each compiled class references.
+ * <p>
+ * The references are recorded from the same constant pool scan that decides if a class needs
+ * enhancement. When an entity or query bean is recompiled the callers of its query beans (and
+ * transitively the callers of query beans that reference them) are enhanced as well, even though
+ * the compiler did not regenerate them.
+ * </p>
+ */
+class QueryBeanDependencyGraph {
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String FILE_NAME = "dependencies.graph";
+
+  /**
+   * A class with its output root and the query beans it references.
+   */
+  private static class Node {
+
+    private final String outputRoot;
+
+    private final String[] references;
+
+    private Node(String outputRoot, String[] references) {
+      this.outputRoot = outputRoot;
+      this.references = references;
+    }
+  }
+
+  private final File graphFile;
+
+  private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();
+
+  private volatile String fingerprint = "";
+
+  private volatile boolean changed;
+
+  private QueryBeanDependencyGraph(File graphFile) {
+    this.graphFile = graphFile;
+  }
+
+  /**
+   * Load the graph from the cache directory returning an empty graph if there is none (or it can not be read).
+   */
+  static QueryBeanDependencyGraph load(File cacheDir) {
+    QueryBeanDependencyGraph graph = new QueryBeanDependencyGraph(new File(cacheDir, FILE_NAME));
+    if (graph.graphFile.exists()) {
+      try {
+        graph.read();
+      } catch (IOException | RuntimeException e) {
+        // corrupt or partially written, just start again
+        graph.nodes.clear();
+      }
+    }
+    return graph;
+  }
+
+  /**
+   * Set the query bean packages, clearing the graph if they differ from the packages it was recorded with.
+   */
+  void setPackages(Set<String> packages) {
+    String current = EnhancementCache.fingerprint(packages);
+    if (!current.equals(fingerprint)) {
+      nodes.clear();
+      fingerprint = current;
+      changed = true;
+    }
+  }
+
+  /**
+   * Clear the graph (rebuild).
+   */
+  void clear() {
+    nodes.clear();
+    changed = true;
+  }
+
+  /**
+   * Record the query beans referenced by the class (replacing those previously recorded).
+   */
+  void update(String className, File file, Collection<String> references) {
+    if (references.isEmpty()) {
+      if (nodes.remove(className) != null) {
+        changed = true;
+      }
+    } else {
+      String outputRoot = EnhancementCache.outputRoot(className, file);
+      nodes.put(className, new Node(outputRoot, references.toArray(new String[references.size()])));
+      changed = true;
+    }
+  }
+
+  /**
+   * Return the class files of the classes that reference the given classes, directly or via other
+   * query beans, excluding the given classes and classes whose class file no longer exists.
+   */
+  Map<String, File> callers(Collection<String> classNames) {
+
+    Map<String, List<String>> referencedBy = new HashMap<>();
+    for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+      for (String reference : entry.getValue().references) {
+        List<String> callers = referencedBy.get(reference);
+        if (callers == null) {
+          callers = new ArrayList<>(2);
+          referencedBy.put(reference, callers);
+        }
+        callers.add(entry.getKey());
+      }
+    }
+
+    Set<String> seen = new HashSet<>(classNames);
+    Deque<String> queue = new ArrayDeque<>(classNames);
+    Map<String, File> callerFiles = new LinkedHashMap<>();
+    while (!queue.isEmpty()) {
+      List<String> callers = referencedBy.get(queue.poll());
+      if (callers == null) {
+        continue;
+      }
+      for (String caller : callers) {
+        if (seen.add(caller)) {
+          Node node = nodes.get(caller);
+          File file = (node == null) ? null : new File(node.outputRoot, caller.replace('.', '/') + ".class");
+          if (file != null && file.exists()) {
+            callerFiles.put(caller, file);
+            queue.add(caller);
+          }
+        }
+      }
+    }
+    return callerFiles;
+  }
+
+  /**
+   * Write the graph to disk if it has changed.
+   */
+  void save() throws IOException {
+    if (!changed) {
+      return;
+    }
+    File dir = graphFile.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(graphFile)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(fingerprint);
+      out.writeInt(nodes.size());
+      for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+        Node node = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeUTF(node.outputRoot);
+        out.writeShort(node.references.length);
+        for (String reference : node.references) {
+          out.writeUTF(reference);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    changed = false;
+  }
+
+  private void read() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(graphFile)));
+    try {
+      if (in.readInt() != FORMAT_VERSION) {
+        changed = true;
+        return;
+      }
+      fingerprint = in.readUTF();
+      // the output roots and references are shared by many nodes
+      Map<String, String> shared = new HashMap<>();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String className = in.readUTF();
+        String outputRoot = share(shared, in.readUTF());
+        String[] references = new String[in.readUnsignedShort()];
+        for (int j = 0; j < references.length; j++) {
+          references[j] = share(shared, in.readUTF());
+        }
+        nodes.put(className, new Node(outputRoot, references));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String share(Map<String, String> shared, String value) {
+    String existing = shared.get(value);
+    if (existing == null) {
+      shared.put(value, value);
+      return value;
+    }
+    return existing;
+  }
+}
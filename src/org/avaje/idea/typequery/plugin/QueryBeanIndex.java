@@ -0,0 +1,253 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent per project index of the query beans of each entity.
+ * <p>
+ * Built from the query beans the generator output as they are scanned (see
+ * {@link QueryBeanReferenceScanner#queryBeanEntity(byte[])}) so it finds query beans regardless of
+ * their package or name. Each query bean is held with its output root and entity (both shared) and
+ * the entity to query bean mapping is updated incrementally, such that finding the query beans of the
+ * compiled entities needs no file system probes for the classes that are not entities.
+ * </p>
+ * <p>
+ * The query beans are found by their annotation so unlike the dependency graph the index does not
+ * depend on the manifest packages.
+ * </p>
+ */
+class QueryBeanIndex {
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String FILE_NAME = "querybeans.index";
+
+  private static final String[] NONE = new String[0];
+
+  /**
+   * A query bean with its output root and entity.
+   */
+  private static class Bean {
+
+    private final String outputRoot;
+
+    private final String entity;
+
+    private Bean(String outputRoot, String entity) {
+      this.outputRoot = outputRoot;
+      this.entity = entity;
+    }
+  }
+
+  private final File indexFile;
+
+  /**
+   * The query beans keyed by className.
+   */
+  private final ConcurrentHashMap<String, Bean> beans = new ConcurrentHashMap<>();
+
+  /**
+   * The query bean classNames of each entity, modified under the lock of the index.
+   */
+  private final ConcurrentHashMap<String, String[]> entityBeans = new ConcurrentHashMap<>();
+
+  /**
+   * Output roots and entities shared by the query beans.
+   */
+  private final Map<String, String> shared = new HashMap<>();
+
+  private volatile boolean changed;
+
+  private QueryBeanIndex(File indexFile) {
+    this.indexFile = indexFile;
+  }
+
+  /**
+   * Load the index from the cache directory returning an empty index if there is none (or it can not be read).
+   */
+  static QueryBeanIndex load(File cacheDir) {
+    QueryBeanIndex index = new QueryBeanIndex(new File(cacheDir, FILE_NAME));
+    if (index.indexFile.exists()) {
+      try {
+        index.read();
+      } catch (IOException | RuntimeException e) {
+        // corrupt or partially written, just start again
+        index.clear();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Clear the index (rebuild).
+   */
+  synchronized void clear() {
+    beans.clear();
+    entityBeans.clear();
+    shared.clear();
+    changed = true;
+  }
+
+  /**
+   * Record the entity of a scanned class, null when the class is not a query bean.
+   * <p>
+   * Most classes are not query beans and were not before so this is cheap for them.
+   * </p>
+   */
+  void update(String className, File file, String entity) {
+    if (entity == null) {
+      if (beans.containsKey(className)) {
+        remove(className);
+      }
+    } else {
+      Bean bean = beans.get(className);
+      String outputRoot = EnhancementCache.outputRoot(className, file);
+      if (bean == null || !bean.entity.equals(entity) || !bean.outputRoot.equals(outputRoot)) {
+        put(className, outputRoot, entity);
+      }
+    }
+  }
+
+  /**
+   * Return the class files of the query beans of the entity keyed by className, excluding those whose
+   * class file no longer exists. Returns an empty map (without touching the file system) when the class
+   * is not an entity with query beans.
+   */
+  Map<String, File> queryBeans(String entity) {
+    String[] beanNames = entityBeans.get(entity);
+    if (beanNames == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, File> files = new LinkedHashMap<>();
+    for (String beanName : beanNames) {
+      Bean bean = beans.get(beanName);
+      if (bean != null) {
+        File file = new File(bean.outputRoot, beanName.replace('.', '/') + ".class");
+        if (file.exists()) {
+          files.put(beanName, file);
+        }
+      }
+    }
+    return files;
+  }
+
+  private synchronized void put(String className, String outputRoot, String entity) {
+    Bean previous = beans.put(className, new Bean(share(outputRoot), share(entity)));
+    if (previous != null) {
+      removeEntityBean(previous.entity, className);
+    }
+    addEntityBean(entity, className);
+    changed = true;
+  }
+
+  private synchronized void remove(String className) {
+    Bean previous = beans.remove(className);
+    if (previous != null) {
+      removeEntityBean(previous.entity, className);
+      changed = true;
+    }
+  }
+
+  private void addEntityBean(String entity, String className) {
+    String[] current = entityBeans.get(entity);
+    if (current == null) {
+      current = NONE;
+    }
+    String[] added = new String[current.length + 1];
+    System.arraycopy(current, 0, added, 0, current.length);
+    added[current.length] = className;
+    entityBeans.put(share(entity), added);
+  }
+
+  private void removeEntityBean(String entity, String className) {
+    String[] current = entityBeans.get(entity);
+    if (current == null) {
+      return;
+    }
+    int pos = -1;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].equals(className)) {
+        pos = i;
+        break;
+      }
+    }
+    if (pos == -1) {
+      return;
+    }
+    if (current.length == 1) {
+      entityBeans.remove(entity);
+    } else {
+      String[] removed = new String[current.length - 1];
+      System.arraycopy(current, 0, removed, 0, pos);
+      System.arraycopy(current, pos + 1, removed, pos, removed.length - pos);
+      entityBeans.put(entity, removed);
+    }
+  }
+
+  private String share(String value) {
+    String existing = shared.get(value);
+    if (existing == null) {
+      shared.put(value, value);
+      return value;
+    }
+    return existing;
+  }
+
+  /**
+   * Write the index to disk if it has changed.
+   */
+  synchronized void save() throws IOException {
+    if (!changed) {
+      return;
+    }
+    File dir = indexFile.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(beans.size());
+      for (Map.Entry<String, Bean> entry : beans.entrySet()) {
+        Bean bean = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeUTF(bean.outputRoot);
+        out.writeUTF(bean.entity);
+      }
+    } finally {
+      out.close();
+    }
+    changed = false;
+  }
+
+  private synchronized void read() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if (in.readInt() != FORMAT_VERSION) {
+        changed = true;
+        return;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String className = in.readUTF();
+        String outputRoot = in.readUTF();
+        put(className, outputRoot, in.readUTF());
+      }
+      changed = false;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Scans the constant pool of class bytes to determine if the class could need query bean enhancement.
+ * <p>
+ * A class needs enhancement if it is a query bean (annotated with TypeQueryBean) or if it references
+ * a query bean type from one of the manifest packages. Classes with neither in their constant pool
+ * can be skipped without running them through the agent.
+ * </p>
+ * <p>
+ * The query bean detection mirrors the agent, being a type in a <code>query</code> or
+ * <code>query/assoc</code> sub package of a manifest package with a 'Q' prefixed name.
+ * </p>
+ */
+class QueryBeanReferenceScanner {
+
+  private static final byte[] TYPE_QUERY_BEAN_ANNOTATION = "Lorg/avaje/ebean/typequery/TypeQueryBean;".getBytes(StandardCharsets.UTF_8);
+
+  private static final String ROOT_BEAN_SIGNATURE = "Lorg/avaje/ebean/typequery/TQRootBean<L";
+
+  private static final String ASSOC_BEAN_SIGNATURE = "Lorg/avaje/ebean/typequery/TQAssocBean<L";
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_DYNAMIC = 17;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  /**
+   * The manifest packages in internal form (e.g. org/example/domain/).
+   */
+  private final String[] packages;
+
+  QueryBeanReferenceScanner(Set<String> packages) {
+    this.packages = new String[packages.size()];
+    int i = 0;
+    for (String pkg : packages) {
+      this.packages[i++] = toInternal(pkg);
+    }
+  }
+
+  /**
+   * Convert a manifest package into internal form the same way the agent does.
+   */
+  private static String toInternal(String pkg) {
+    pkg = pkg.trim();
+    if (pkg.endsWith("*")) {
+      pkg = pkg.substring(0, pkg.length() - 1);
+    }
+    if (pkg.endsWith(".query")) {
+      pkg = pkg.substring(0, pkg.length() - ".query".length());
+    }
+    pkg = pkg.replace('.', '/');
+    return pkg.endsWith("/") ? pkg : pkg + "/";
+  }
+
+  /**
+   * Return true if the class could need enhancement (is or references a query bean).
+   * <p>
+   * Bytes that can not be parsed return true leaving it to the agent to decide.
+   * </p>
+   */
+  boolean isEnhancementCandidate(byte[] classBytes) {
+    return isEnhancementCandidate(classBytes, null);
+  }
+
+  /**
+   * Return true if the class could need enhancement additionally collecting the names (dot form)
+   * of the query beans in the constant pool (when references is not null). For a query bean this
+   * includes itself.
+   */
+  boolean isEnhancementCandidate(byte[] classBytes, Set<String> references) {
+    try {
+      return scan(classBytes, references);
+    } catch (RuntimeException e) {
+      // truncated or otherwise invalid constant pool
+      return true;
+    }
+  }
+
+  private boolean scan(byte[] b, Set<String> references) {
+
+    if (b.length < 10 || readInt(b, 0) != 0xCAFEBABE) {
+      return true;
+    }
+
+    int count = readUnsignedShort(b, 8);
+    // offset of the utf8 entry for each constant pool index (0 when not utf8)
+    int[] utf8Offsets = new int[count];
+    // constant pool index of the name for each class entry
+    int[] classNames = new int[count];
+    int classCount = 0;
+    boolean queryBean = false;
+
+    int offset = 10;
+    for (int i = 1; i < count; i++) {
+      int tag = b[offset];
+      switch (tag) {
+        case CONSTANT_UTF8:
+          int length = readUnsignedShort(b, offset + 1);
+          if (matches(b, offset + 3, length, TYPE_QUERY_BEAN_ANNOTATION)) {
+            if (references == null) {
+              return true;
+            }
+            queryBean = true;
+          }
+          utf8Offsets[i] = offset;
+          offset += 3 + length;
+          break;
+        case CONSTANT_CLASS:
+          classNames[classCount++] = readUnsignedShort(b, offset + 1);
+          offset += 3;
+          break;
+        case CONSTANT_LONG:
+        case CONSTANT_DOUBLE:
+          offset += 9;
+          // takes two constant pool slots
+          i++;
+          break;
+        default:
+          offset += entrySize(b, offset);
+      }
+    }
+
+    boolean referencesQueryBean = false;
+    for (int i = 0; i < classCount; i++) {
+      int utf8Offset = utf8Offsets[classNames[i]];
+      if (utf8Offset > 0) {
+        String name = ClassMetadata.utf8Constant(b, utf8Offset);
+        if (isQueryBean(name)) {
+          if (references == null) {
+            return true;
+          }
+          referencesQueryBean = true;
+          references.add(name.replace('/', '.'));
+        }
+      }
+    }
+    return queryBean || referencesQueryBean;
+  }
+
+  /**
+   * Return true if the internal class name is a query bean in one of the manifest packages.
+   */
+  boolean isQueryBean(String internalName) {
+    int pos = internalName.lastIndexOf("/query/");
+    if (pos == -1) {
+      return false;
+    }
+    String suffix = internalName.substring(pos);
+    if (!suffix.startsWith("/query/Q") && !suffix.startsWith("/query/assoc/Q")) {
+      return false;
+    }
+    String domainPackage = internalName.substring(0, pos + 1);
+    for (String pkg : packages) {
+      if (domainPackage.startsWith(pkg)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the size in bytes of the constant pool entry at the offset.
+   */
+  private static int entrySize(byte[] b, int offset) {
+    int tag = b[offset];
+    switch (tag) {
+      case CONSTANT_UTF8:
+        return 3 + readUnsignedShort(b, offset + 1);
+      case CONSTANT_LONG:
+      case CONSTANT_DOUBLE:
+        return 9;
+      case CONSTANT_INTEGER:
+      case CONSTANT_FLOAT:
+      case CONSTANT_FIELDREF:
+      case CONSTANT_METHODREF:
+      case CONSTANT_INTERFACE_METHODREF:
+      case CONSTANT_NAME_AND_TYPE:
+      case CONSTANT_DYNAMIC:
+      case CONSTANT_INVOKE_DYNAMIC:
+        return 5;
+      case CONSTANT_METHOD_HANDLE:
+        return 4;
+      case CONSTANT_CLASS:
+      case CONSTANT_STRING:
+      case CONSTANT_METHOD_TYPE:
+      case CONSTANT_MODULE:
+      case CONSTANT_PACKAGE:
+        return 3;
+      default:
+        throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+    }
+  }
+
+  /**
+   * Return the entity (dot form) of a query bean or null if the class is not a query bean.
+   * <p>
+   * A query bean is annotated with TypeQueryBean and its entity is the first type argument of its
+   * TQRootBean or TQAssocBean super class (from the class signature) so this does not depend on the
+   * package or name of the query bean. Bytes that can not be parsed return null.
+   * </p>
+   */
+  String queryBeanEntity(byte[] classBytes) {
+    try {
+      return entity(classBytes);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static String entity(byte[] b) {
+
+    if (b.length < 10 || readInt(b, 0) != 0xCAFEBABE) {
+      return null;
+    }
+    int count = readUnsignedShort(b, 8);
+    int[] utf8Offsets = new int[count];
+    int utf8Count = 0;
+    boolean queryBean = false;
+
+    int offset = 10;
+    for (int i = 1; i < count; i++) {
+      int tag = b[offset];
+      if (tag == CONSTANT_UTF8) {
+        if (matches(b, offset + 3, readUnsignedShort(b, offset + 1), TYPE_QUERY_BEAN_ANNOTATION)) {
+          queryBean = true;
+        }
+        utf8Offsets[utf8Count++] = offset;
+      } else if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+        // takes two constant pool slots
+        i++;
+      }
+      offset += entrySize(b, offset);
+    }
+    if (!queryBean) {
+      return null;
+    }
+
+    for (int i = 0; i < utf8Count; i++) {
+      int utf8Offset = utf8Offsets[i];
+      String value = ClassMetadata.utf8Constant(b, utf8Offset);
+      String entity = entity(value, ROOT_BEAN_SIGNATURE);
+      if (entity == null) {
+        entity = entity(value, ASSOC_BEAN_SIGNATURE);
+      }
+      if (entity != null) {
+        return entity;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the first type argument of the super class in the signature (dot form) or null if it does not match.
+   */
+  private static String entity(String signature, String superSignature) {
+    int pos = signature.indexOf(superSignature);
+    if (pos == -1 || (pos > 0 && signature.charAt(pos - 1) != '>')) {
+      // not the super class of a class signature (which may start with formal type parameters)
+      return null;
+    }
+    int start = pos + superSignature.length();
+    int end = start;
+    while (end < signature.length() && signature.charAt(end) != ';' && signature.charAt(end) != '<') {
+      end++;
+    }
+    return (end == signature.length()) ? null : signature.substring(start, end).replace('/', '.');
+  }
+
+  private static boolean matches(byte[] b, int offset, int length, byte[] expected) {
+    if (length != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (b[offset + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int readUnsignedShort(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+  }
+}
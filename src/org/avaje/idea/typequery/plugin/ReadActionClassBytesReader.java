@@ -0,0 +1,26 @@
+package org.avaje.idea.typequery.plugin;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
+
+/**
+ * Runs another reader inside a read action, for readers using PSI or the VFS from enhancement worker threads.
+ */
+public class ReadActionClassBytesReader implements ClassBytesReader {
+
+  private final ClassBytesReader delegate;
+
+  public ReadActionClassBytesReader(ClassBytesReader delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public byte[] getClassBytes(final String classNamePath, final ClassLoader classLoader) {
+    return ApplicationManager.getApplication().runReadAction(new Computable<byte[]>() {
+      @Override
+      public byte[] compute() {
+        return delegate.getClassBytes(classNamePath, classLoader);
+      }
+    });
+  }
+}
@@ -0,0 +1,257 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enhances classes in the background as the compiler generates them (streaming mode).
+ * <p>
+ * Classes are transformed speculatively using the classes generated so far, the library classes
+ * (via the library class loader of the {@link EnhancementContext}, as the enhancement task) and the
+ * classes previously found via {@link ClassLocationCache}. When compilation finishes the results that
+ * are still valid are handed to the enhancement task, classes that could not be resolved during
+ * the speculative transform are left for the task to enhance as normal.
+ * </p>
+ */
+class StreamingEnhancer {
+
+  /**
+   * The outcome of a speculative transform.
+   */
+  static class Result {
+
+    private final long lastModified;
+
+    private final long length;
+
+    private volatile byte[] transformed;
+
+    /**
+     * Set when a class the transform needed could not be resolved.
+     */
+    private volatile boolean incomplete;
+
+    private Result(File file) {
+      this.lastModified = file.lastModified();
+      this.length = file.length();
+    }
+
+    /**
+     * Return the transformed bytes or null if the class was not changed.
+     */
+    byte[] getTransformed() {
+      return transformed;
+    }
+
+    private boolean isValid(File file) {
+      return !incomplete && file.lastModified() == lastModified && file.length() == length;
+    }
+  }
+
+  private final Set<String> packages;
+
+  private final ClassLocationCache classLocationCache;
+
+  private final QueryBeanReferenceScanner scanner;
+
+  private final InputStreamTransform isTransform;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * The classes generated so far.
+   */
+  private final ConcurrentHashMap<String, File> generated = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<String, Result> results = new ConcurrentHashMap<>();
+
+  /**
+   * The bytes of the generated classes, read once for their transform and when resolving them.
+   */
+  private final ClassBytesStore store = new ClassBytesStore();
+
+  /**
+   * Classes that were resolved from outside of the generated classes.
+   */
+  private final Set<String> externalClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final EnhancementLog log;
+
+  private final QueryBeanDependencyGraph dependencyGraph;
+
+  private final QueryBeanIndex queryBeanIndex;
+
+  /**
+   * The result of the transform running on the current thread.
+   */
+  private final ThreadLocal<Result> currentResult = new ThreadLocal<>();
+
+  /**
+   * Create the enhancer.
+   *
+   * @param packages      the query bean packages
+   * @param parent        the library class loader, the parent of the class loader resolving the generated classes
+   * @param classLocationCache  the classes previously found via PSI
+   */
+  StreamingEnhancer(Set<String> packages, ClassLoader parent, ClassLocationCache classLocationCache, QueryBeanDependencyGraph dependencyGraph,
+                    QueryBeanIndex queryBeanIndex, int workerCount, int debug, boolean metadataResolution, EnhancementLog log) {
+    this.packages = packages;
+    this.log = log;
+    this.dependencyGraph = dependencyGraph;
+    this.queryBeanIndex = queryBeanIndex;
+    this.classLocationCache = classLocationCache;
+    this.scanner = new QueryBeanReferenceScanner(packages);
+    this.pool = new ForkJoinPool(Math.max(1, workerCount));
+
+    IdeaClassLoader classLoader = new IdeaClassLoader(parent, new SpeculativeReader());
+    QueryBeanTransformer transformer = EnhancementEngine.createTransformer(packages, debug, classLoader, metadataResolution);
+    this.isTransform = new InputStreamTransform(transformer, classLoader);
+  }
+
+  /**
+   * Return the packages the speculative transforms used.
+   */
+  Set<String> getPackages() {
+    return packages;
+  }
+
+  /**
+   * Queue a generated class for enhancement.
+   */
+  void add(final String className, final File file) {
+    // written again by a later compile round, the bytes held are of the previous version
+    store.remove(className);
+    generated.put(className, file);
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        transform(className, file);
+      }
+    });
+  }
+
+  private void transform(String className, File file) {
+    // the version of the file is taken before the read, bytes of an older version are not used
+    Result result = new Result(file);
+    currentResult.set(result);
+    try {
+      byte[] classBytes = store.read(className, file, result.lastModified, result.length);
+      Set<String> references = new HashSet<>();
+      boolean candidate = scanner.isEnhancementCandidate(classBytes, references);
+      references.remove(className);
+      dependencyGraph.update(className, file, references);
+      queryBeanIndex.update(className, file, candidate ? scanner.queryBeanEntity(classBytes) : null);
+      if (candidate) {
+        boolean agentError;
+        TransformOutput.INSTANCE.begin(log);
+        try {
+          result.transformed = isTransform.transform(className, classBytes);
+        } finally {
+          agentError = TransformOutput.INSTANCE.end();
+        }
+        if (agentError) {
+          // the agent failed, leave it for the enhancement task
+          result.incomplete = true;
+        }
+      }
+      results.put(className, result);
+
+    } catch (Exception e) {
+      // leave it for the enhancement task
+      log.log("Streaming enhancement of " + className + " failed " + e);
+
+    } finally {
+      currentResult.remove();
+    }
+  }
+
+  /**
+   * Discard any queued work (compilation aborted).
+   */
+  void cancel() {
+    pool.shutdownNow();
+  }
+
+  /**
+   * Wait for the queued classes to be enhanced and return the results that are still valid keyed by className.
+   */
+  Map<String, Result> finish() throws InterruptedException {
+
+    pool.shutdown();
+    while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+      // keep waiting for the queue to drain
+    }
+
+    for (String externalClass : externalClasses) {
+      if (generated.containsKey(externalClass)) {
+        // resolved a class from a previous build that has since been compiled, results may be stale
+        return Collections.emptyMap();
+      }
+    }
+
+    Map<String, Result> valid = new HashMap<>();
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      String className = entry.getKey();
+      if (entry.getValue().isValid(generated.get(className))) {
+        valid.put(className, entry.getValue());
+      }
+    }
+    return valid;
+  }
+
+  /**
+   * Return the log of the speculative transforms (continued by the enhancement task).
+   */
+  EnhancementLog getLog() {
+    return log;
+  }
+
+  /**
+   * Reads the classes generated so far and the classes found by previous PSI lookups (library
+   * classes being found by the parent class loader).
+   */
+  private class SpeculativeReader implements ClassBytesReader {
+
+    @Override
+    public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+
+      String className = classNamePath.replace('/', '.');
+      File file = generated.get(className);
+      if (file != null) {
+        try {
+          return store.read(className, file);
+        } catch (IOException e) {
+          return unresolved();
+        }
+      }
+
+      ClassLocationCache.Entry entry = classLocationCache.get(classNamePath);
+      if (entry == null || entry.isMiss()) {
+        return unresolved();
+      }
+      externalClasses.add(classNamePath.replace('/', '.'));
+      return entry.getBytes();
+    }
+
+    /**
+     * Mark the current transform as incomplete such that the class is enhanced again by the task.
+     */
+    private byte[] unresolved() {
+      Result result = currentResult.get();
+      if (result != null) {
+        result.incomplete = true;
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The agent log output (logout) of the transformers, routing the output of each transform to the log
+ * of the run performing it.
+ * <p>
+ * A transformer is long lived and can be used by overlapping runs so rather than setting the log of
+ * a run on the transformer, the log is set on the thread performing the transform for its duration.
+ * Output outside of a transform goes to standard out as it does with the agent.
+ * </p>
+ * <p>
+ * Also records whether the agent logged an exception during the transform. The agent catches the
+ * exceptions of a transform (such as a class it needs not being found) and logs them returning null,
+ * the same as for a class that needs no change.
+ * </p>
+ */
+final class TransformOutput extends PrintStream {
+
+  /**
+   * The output set as the logout of the transformers.
+   */
+  static final TransformOutput INSTANCE = new TransformOutput();
+
+  /**
+   * The transform running on a thread.
+   */
+  private static class Transform {
+
+    private final EnhancementLog log;
+
+    private boolean error;
+
+    private Transform(EnhancementLog log) {
+      this.log = log;
+    }
+  }
+
+  private final ThreadLocal<Transform> current = new ThreadLocal<>();
+
+  private TransformOutput() {
+    super(new OutputStream() {
+      @Override
+      public void write(int b) {
+        // all the output is routed by message
+      }
+    });
+  }
+
+  /**
+   * Route the agent output of the current thread to the log until {@link #end()}.
+   */
+  void begin(EnhancementLog log) {
+    current.set(new Transform(log));
+  }
+
+  /**
+   * End routing the agent output of the current thread returning true if the agent logged an exception.
+   */
+  boolean end() {
+    Transform transform = current.get();
+    current.remove();
+    return transform != null && transform.error;
+  }
+
+  @Override
+  public void print(String message) {
+    log(message);
+  }
+
+  @Override
+  public void println(String message) {
+    log(message);
+  }
+
+  @Override
+  public void println(Object value) {
+    if (value instanceof Throwable) {
+      // the agent logs the exceptions it catches via printStackTrace which prints the exception first
+      Transform transform = current.get();
+      if (transform != null) {
+        transform.error = true;
+      }
+    }
+    log(String.valueOf(value));
+  }
+
+  private void log(String message) {
+    Transform transform = current.get();
+    if (transform != null) {
+      transform.log.log(message);
+    } else {
+      System.out.println(message);
+    }
+  }
+}
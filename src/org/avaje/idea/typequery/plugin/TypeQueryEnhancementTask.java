@@ -2,166 +2,513 @@ package org.avaje.idea.typequery.plugin;
 
 import com.intellij.openapi.compiler.CompileContext;
 import com.intellij.openapi.compiler.CompilerMessageCategory;
-import com.intellij.openapi.module.Module;
-import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
-import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VfsUtil;
-import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiFile;
-import com.intellij.psi.search.FilenameIndex;
-import com.intellij.psi.search.GlobalSearchScope;
-import com.intellij.util.ActionRunner;
-import org.avaje.ebean.typequery.agent.AgentManifestReader;
-import org.avaje.ebean.typequery.agent.QueryBeanTransformer;
-
-import java.io.ByteArrayOutputStream;
+import com.intellij.openapi.roots.CompilerProjectExtension;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
 import java.lang.instrument.IllegalClassFormatException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.jar.Attributes;
-import java.util.jar.Manifest;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This task actually hand all successfully compiled classes over to the Ebean Type Query agent
  * which performs it's enhancement.
+ * <p>
+ * Run as the last task of the build (or as a cancellable background task for a failed build). The
+ * classes are written via the {@link ClassOutputWriter} which commits all the classes or none of them,
+ * cancellation being checked before the commit, and journals the write such that an enhancement
+ * interrupted part way through is repaired by the next build.
+ * </p>
+ * <p>
+ * With a memory budget the classes are read, transformed and written in chunks whose estimated
+ * memory use fits the budget rather than holding the bytes of all the classes at once. When
+ * cancelled only the classes of the current chunk are not written, earlier chunks being complete.
+ * </p>
  */
 public class TypeQueryEnhancementTask {
 
-  private static final int DEBUG = 2;
+  static final int DEBUG = 2;
+
+  /**
+   * Name of the metrics file written to the project compiler output directory.
+   */
+  static final String METRICS_FILE = "querybean-enhancement.json";
+
+  /**
+   * Name of the detailed log file written to the project compiler output directory.
+   */
+  static final String LOG_FILE = "querybean-enhancement.log";
+
+  /**
+   * Number of log lines added to each compiler message when flushing the log.
+   */
+  private static final int LOG_BATCH_LINES = 50;
+
+  /**
+   * Estimated bytes held per byte of class file while its chunk is processed: the class bytes held by
+   * the byte store (1x the file length) plus the transformed bytes held until the chunk is written
+   * (at most about 1x, the agent adds little to a class and only changed classes are held). The agent's
+   * reader and writer buffers are per class being transformed (one per worker) so are not counted.
+   */
+  private static final int MEMORY_PER_CLASS_BYTE = 2;
 
   private final CompileContext compileContext;
 
   private final Map<String, File> compiledClasses;
 
-  public TypeQueryEnhancementTask(CompileContext compileContext, Map<String, File> compiledClasses) {
+  private final EnhancementActionComponent component;
+
+  private final int workerCount;
+
+  /**
+   * Enhances classes as they were generated, null when not streaming.
+   */
+  private final StreamingEnhancer streamingEnhancer;
+
+  /**
+   * The enhancement caches keyed by output root.
+   */
+  private final Map<String, EnhancementCache> caches = new HashMap<>();
+
+  private final EnhancementMetrics metrics = new EnhancementMetrics();
+
+  /**
+   * The agent output, continued from the streaming enhancement when there is one.
+   */
+  private final EnhancementLog log;
+
+  private ProgressIndicator progressIndicator;
+
+  /**
+   * The last modified time of the classes of the current chunk when they were read, a class modified
+   * since (by a following build) is not overwritten.
+   */
+  private final Map<String, Long> lastModified = new HashMap<>();
+
+  private EnhancementEngine engine;
+
+  /**
+   * The class bytes read by this build, each class file being read once per chunk (cleared as each
+   * chunk is written, including the classes of other chunks resolved by its transforms).
+   */
+  private final ClassBytesStore store = new ClassBytesStore();
+
+  private Map<String, StreamingEnhancer.Result> streamedResults = Collections.emptyMap();
+
+  private final AtomicInteger done = new AtomicInteger();
+
+  private long transformStart;
+
+  public TypeQueryEnhancementTask(CompileContext compileContext, Map<String, File> compiledClasses, EnhancementActionComponent component, StreamingEnhancer streamingEnhancer) {
     this.compileContext = compileContext;
     this.compiledClasses = compiledClasses;
+    this.component = component;
+    this.workerCount = component.getWorkerCount();
+    this.streamingEnhancer = streamingEnhancer;
+    this.log = (streamingEnhancer != null) ? streamingEnhancer.getLog() : component.createLog();
   }
 
-  public void process() {
+  /**
+   * Enhance the classes reporting progress to (and checking cancellation of) the build or background task indicator.
+   */
+  public void process(ProgressIndicator progressIndicator) {
+    this.progressIndicator = progressIndicator;
     try {
-      ActionRunner.runInsideWriteAction(
-          new ActionRunner.InterruptibleRunnable() {
-            @Override
-            public void run() throws Exception {
-              doProcess();
-            }
+      prepare();
+      long memoryBudget = component.getMemoryBudget();
+      int chunks = 0;
+      Map<String, File> chunk = new LinkedHashMap<>();
+      long chunkMemory = 0;
+      for (Entry<String, File> entry : compiledClasses.entrySet()) {
+        chunk.put(entry.getKey(), entry.getValue());
+        if (memoryBudget > 0) {
+          chunkMemory += entry.getValue().length() * MEMORY_PER_CLASS_BYTE;
+          if (chunkMemory >= memoryBudget) {
+            processChunk(chunk);
+            chunks++;
+            chunk = new LinkedHashMap<>();
+            chunkMemory = 0;
           }
-      );
+        }
+      }
+      if (!chunk.isEmpty()) {
+        processChunk(chunk);
+        chunks++;
+      }
+      if (chunks > 1) {
+        compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean Query bean enhancement processed " + chunks
+            + " chunks within the memory budget of " + (memoryBudget / (1024 * 1024)) + "MB", null, -1, -1);
+      }
+      reportVerifyFailures();
+      saveCaches();
+      metrics.complete();
+      compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean Query bean enhancement complete! " + metrics.summary(), null, -1, -1);
+      writeMetrics();
+
+    } catch (ProcessCanceledException e) {
+      // the scan results and unchanged classes recorded so far are still valid
+      saveCaches();
+      compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean Query bean enhancement cancelled, the remaining compiled"
+          + " classes are not enhanced - rebuild to enhance them", null, -1, -1);
+
     } catch (Exception e) {
       e.printStackTrace();
       String msg = Arrays.toString(e.getStackTrace());
       compileContext.addMessage(CompilerMessageCategory.ERROR, e.getClass().getName() + ":" + e.getMessage() + msg, null, -1, -1);
+
+    } finally {
+      if (engine != null) {
+        engine.shutdown();
+      }
+      flushLog();
     }
   }
 
   /**
-   * Find the type query manifest files externally to the agent as classLoader getResources does
-   * not work for the agent when run in the IDEA plugin.
-   *
-   * @return The packages containing type query beans (this is required for the enhancement).
+   * Report the classes that failed verification as errors.
    */
-  private Set<String> findManifests() {
+  private void reportVerifyFailures() {
+    for (String failure : engine.getVerifyFailures()) {
+      compileContext.addMessage(CompilerMessageCategory.ERROR, "Ebean query bean - verify failed " + failure, null, -1, -1);
+    }
+  }
 
-    AgentManifestReader manifestReader = new AgentManifestReader();
+  /**
+   * Add the retained agent output to the compiler messages in batches and write the detailed log when requested.
+   */
+  private void flushLog() {
 
-    // read from the module output directories,  we do this as generated
-    // ebean-typequery.mf is often not found via search
-    ModuleManager moduleManager = ModuleManager.getInstance(compileContext.getProject());
-    Module[] modules = moduleManager.getModules();
+    long count = log.getCount();
+    if (count > 0) {
+      List<String> retained = log.getRetained();
+      String shown = (count > retained.size()) ? " showing the last " + retained.size() : "";
+      compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean Query bean enhancement log - messages:" + count + shown, null, -1, -1);
+      for (String batch : EnhancementLog.batches(retained, LOG_BATCH_LINES)) {
+        compileContext.addMessage(CompilerMessageCategory.INFORMATION, batch, null, -1, -1);
+      }
+    }
 
-    for (Module module : modules) {
-      VirtualFile outputDirectory = compileContext.getModuleOutputDirectory(module);
-      if (outputDirectory != null) {
-        //compileContext.addMessage(CompilerMessageCategory.INFORMATION, "... read from module outputDirectory:" + outputDirectory, null, -1, -1);
-        VirtualFile mf = outputDirectory.findFileByRelativePath("META-INF/ebean-typequery.mf");
-        if (mf != null) {
-          try {
-            readManifest(manifestReader, mf.getInputStream());
-          } catch (IOException e) {
-            compileContext.addMessage(CompilerMessageCategory.ERROR, "Error reading META-INF/ebean-typequery.mf from " + outputDirectory + " error:" + e, null, -1, -1);
-          }
+    if (log.isDetailed()) {
+      File outputDir = outputDir();
+      if (outputDir != null) {
+        try {
+          log.writeDetail(new File(outputDir, LOG_FILE));
+        } catch (IOException e) {
+          compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - error writing enhancement log " + e, null, -1, -1);
         }
       }
     }
+  }
+
+  /**
+   * Read the packages and caches, wait for any streaming enhancement and create the engine.
+   */
+  private void prepare() throws IOException {
 
-    Project project = compileContext.getProject();
-    GlobalSearchScope searchScope = GlobalSearchScope.allScope(compileContext.getProject());
+    recoverInterrupted();
 
-    // read ebean-typequery.mf via project search
-    PsiFile[] files = FilenameIndex.getFilesByName(project, "ebean-typequery.mf", searchScope);
-    for (int i = 0; i < files.length; i++) {
-      //compileContext.addMessage(CompilerMessageCategory.INFORMATION, "... found by search:" + files[i], null, -1, -1);
-      manifestReader.addRaw(files[i].getText());
+    ManifestPackageCache manifestPackageCache = component.getManifestPackageCache();
+    if (compileContext.isRebuild()) {
+      manifestPackageCache.invalidate();
+    }
+    long start = System.nanoTime();
+    Set<String> packages = manifestPackageCache.getPackages(compileContext);
+    metrics.addTime(EnhancementMetrics.Phase.MANIFESTS, System.nanoTime() - start);
+    compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean Query bean enhancement using packages:" + packages, null, -1, -1);
+    loadCaches(packages);
+    QueryBeanDependencyGraph dependencyGraph = component.getDependencyGraph();
+    if (compileContext.isRebuild()) {
+      dependencyGraph.clear();
+    }
+    dependencyGraph.setPackages(packages);
+    if (compileContext.isRebuild()) {
+      component.getQueryBeanIndex().clear();
     }
-    return manifestReader.getPackages();
+
+    if (streamingEnhancer != null) {
+      streamedResults = awaitStreamed(packages);
+    }
+
+    progressIndicator.checkCanceled();
+    progressIndicator.setIndeterminate(false);
+    progressIndicator.setFraction(0);
+    progressIndicator.setText("Ebean query bean enhancement");
+    transformStart = System.nanoTime();
+
+    // the classes of this build, then (in a read action) previously found classes, libraries and lastly PSI
+    ClassLocationCache classLocationCache = component.getClassLocationCache();
+    ClassBytesReader classBytesReader = new ClassBytesReaderChain(
+        metrics.reader("compiled", new CompiledClassBytesReader(compiledClasses, store)),
+        new ReadActionClassBytesReader(new ClassBytesReaderChain(
+            metrics.reader("locationCache", classLocationCache),
+            metrics.reader("classpathIndex", component.getClasspathIndex()),
+            metrics.reader("psi", new IdeaClassBytesReader(compileContext, classLocationCache)))));
+    // library classes and the transformer are reused from previous builds
+    EnhancementContext context = component.getEnhancementContext();
+    engine = new EnhancementEngine(packages, classBytesReader, store, context.getLibraryLoader(),
+        context.getTransformer(packages, component.getDebugLevel(), component.isMetadataResolution()), log, workerCount, metrics, dependencyGraph,
+        component.getQueryBeanIndex());
+    engine.setVerify(component.isVerify());
   }
 
   /**
-   * Read the packages from the manifest file.
+   * Transform and write a chunk of the compiled classes.
    */
-  private void readManifest(AgentManifestReader manifestReader, InputStream is) throws IOException {
-    Manifest man = new Manifest(is);
-    Attributes attributes = man.getMainAttributes();
-    String packages = attributes.getValue("packages");
-    if (packages != null) {
-      manifestReader.addRaw(packages);
+  private void processChunk(Map<String, File> chunk) throws Exception {
+
+    lastModified.clear();
+    for (Entry<String, File> entry : chunk.entrySet()) {
+      lastModified.put(entry.getKey(), entry.getValue().lastModified());
+    }
+    // read and transform outside the write action, only the writing of the results needs it
+    try {
+      writeAll(removeIdentical(transform(chunk)));
+    } finally {
+      // keep the bytes held within the budget of a chunk rather than accumulating over the build
+      store.clear();
     }
   }
 
+  /**
+   * Read and transform the classes returning the transformed bytes keyed by className.
+   * <p>
+   * This runs outside of the write action, in parallel when more than one worker is configured.
+   * </p>
+   */
+  private Map<String, byte[]> transform(Map<String, File> chunk) throws IOException, IllegalClassFormatException {
 
-  private void doProcess() throws IOException, IllegalClassFormatException {
-
-    Set<String> packages = findManifests();
-    compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean Query bean enhancement using packages:" + packages, null, -1, -1);
-
-    IdeaClassBytesReader classBytesReader = new IdeaClassBytesReader(compileContext, compiledClasses);
-    IdeaClassLoader classLoader = new IdeaClassLoader(Thread.currentThread().getContextClassLoader(), classBytesReader);
+    // the classes not already enhanced in the background as they were generated
+    Map<String, File> remaining = new LinkedHashMap<>(chunk);
+    remaining.keySet().removeAll(streamedResults.keySet());
+    done.addAndGet(chunk.size() - remaining.size());
 
-    final QueryBeanTransformer transformer = new QueryBeanTransformer("debug=" + DEBUG, classLoader, packages);
+    final int total = compiledClasses.size();
+    Map<String, byte[]> enhanced = engine.transformAll(remaining, new EnhancementEngine.Listener() {
+      @Override
+      public void transforming(String className) {
+        progressIndicator.checkCanceled();
+        int count = done.incrementAndGet();
+        long elapsedMillis = Math.max(1, (System.nanoTime() - transformStart) / 1000000);
+        progressIndicator.setFraction((double) count / total);
+        progressIndicator.setText2(count + "/" + total + " (" + (count * 1000L / elapsedMillis) + " classes/s) " + className);
+      }
 
-    transformer.setLogout(new PrintStream(new ByteArrayOutputStream()) {
       @Override
-      public void print(String message) {
-        compileContext.addMessage(CompilerMessageCategory.INFORMATION, message, null, -1, -1);
+      public boolean isRequired(String className, File file, byte[] classBytes) {
+        return caches.get(EnhancementCache.outputRoot(className, file)).getOutcome(className, classBytes) == null;
       }
 
       @Override
-      public void println(String message) {
-        compileContext.addMessage(CompilerMessageCategory.INFORMATION, message, null, -1, -1);
+      public void unchanged(String className, File file, byte[] classBytes) {
+        caches.get(EnhancementCache.outputRoot(className, file)).unchanged(className, classBytes);
       }
     });
 
-    ProgressIndicator progressIndicator = compileContext.getProgressIndicator();
-    progressIndicator.setIndeterminate(true);
-    progressIndicator.setText("Ebean query bean enhancement");
+    // merge in the original order such that the classes are written in the same order
+    Map<String, byte[]> transformedClasses = new LinkedHashMap<>();
+    for (String className : chunk.keySet()) {
+      byte[] transformed;
+      StreamingEnhancer.Result streamed = streamedResults.get(className);
+      if (streamed != null) {
+        metrics.streamed();
+        transformed = streamed.getTransformed();
+        if (transformed != null) {
+          metrics.transformed();
+        }
+      } else {
+        transformed = enhanced.get(className);
+      }
+      if (transformed != null) {
+        transformedClasses.put(className, transformed);
+      }
+    }
+    return transformedClasses;
+  }
+
+  /**
+   * Wait for the streaming enhancement to complete and return its valid results.
+   */
+  private Map<String, StreamingEnhancer.Result> awaitStreamed(Set<String> packages) throws IOException {
+
+    if (!packages.equals(streamingEnhancer.getPackages())) {
+      // manifest changed during the build so the speculative transforms are not valid
+      streamingEnhancer.cancel();
+      return Collections.emptyMap();
+    }
+    try {
+      return streamingEnhancer.finish();
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting on streaming query bean enhancement", e);
+    }
+  }
 
-    InputStreamTransform isTransform = new InputStreamTransform(transformer, classLoader);
+  /**
+   * Load the enhancement cache for each of the output roots of the compiled classes, cleared on rebuild.
+   */
+  private void loadCaches(Set<String> packages) {
 
+    File cacheDir = component.getCacheDir();
 
     for (Entry<String, File> entry : compiledClasses.entrySet()) {
+      String outputRoot = EnhancementCache.outputRoot(entry.getKey(), entry.getValue());
+      if (!caches.containsKey(outputRoot)) {
+        EnhancementCache cache = EnhancementCache.load(cacheDir, outputRoot, packages);
+        if (compileContext.isRebuild()) {
+          cache.clear();
+        }
+        caches.put(outputRoot, cache);
+      }
+    }
+  }
+
+  private void saveCaches() {
+    for (EnhancementCache cache : caches.values()) {
+      try {
+        cache.save();
+      } catch (IOException e) {
+        compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - error writing enhancement cache " + e, null, -1, -1);
+      }
+    }
+    try {
+      component.getDependencyGraph().save();
+    } catch (IOException e) {
+      compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - error writing dependency graph " + e, null, -1, -1);
+    }
+    try {
+      component.getQueryBeanIndex().save();
+    } catch (IOException e) {
+      compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - error writing query bean index " + e, null, -1, -1);
+    }
+  }
+
+  /**
+   * Write the metrics as JSON to the compiler output directory.
+   */
+  private void writeMetrics() {
+    File outputDir = outputDir();
+    if (outputDir != null) {
+      try {
+        metrics.writeJson(new File(outputDir, METRICS_FILE));
+      } catch (IOException e) {
+        compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - error writing enhancement metrics " + e, null, -1, -1);
+      }
+    }
+  }
+
+  /**
+   * Return the project compiler output directory (or the parent of an output root) or null if not known.
+   */
+  private File outputDir() {
+
+    File outputDir = null;
+    CompilerProjectExtension extension = CompilerProjectExtension.getInstance(compileContext.getProject());
+    String outputUrl = (extension == null) ? null : extension.getCompilerOutputUrl();
+    if (outputUrl != null) {
+      outputDir = new File(VfsUtilCore.urlToPath(outputUrl));
+    } else if (!caches.isEmpty()) {
+      outputDir = new File(caches.keySet().iterator().next()).getParentFile();
+    }
+    return (outputDir != null && outputDir.isDirectory()) ? outputDir : null;
+  }
+
+  /**
+   * Remove the transformed classes whose bytes are identical to the class file as read (no write needed).
+   */
+  private Map<String, byte[]> removeIdentical(Map<String, byte[]> transformedClasses) throws IOException {
+
+    Iterator<Entry<String, byte[]>> it = transformedClasses.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<String, byte[]> entry = it.next();
       String className = entry.getKey();
-      File file = entry.getValue();
-      progressIndicator.setText2(className);
+      File file = compiledClasses.get(className);
+      byte[] transformed = entry.getValue();
+      // only compare the class bytes when the length matches
+      if (file.length() == transformed.length && Arrays.equals(transformed, store.read(className, file))) {
+        metrics.identical();
+        caches.get(EnhancementCache.outputRoot(className, file)).enhanced(className, transformed);
+        it.remove();
+      }
+    }
+    return transformedClasses;
+  }
 
-      byte[] transformed = isTransform.transform(className, file);
-      if (transformed != null) {
-        VirtualFile outputFile = VfsUtil.findFileByIoFile(file, true);
-        if (outputFile == null) {
-          compileContext.addMessage(CompilerMessageCategory.ERROR, "Ebean query bean - outputFile not found writing " + className, null, -1, -1);
-        } else {
-          outputFile.setBinaryContent(transformed);
-        }
+  /**
+   * Write the transformed classes via the output writer (written to temporary files in parallel and
+   * committed by atomic renames, outside of a write action) then refresh the output files once.
+   * <p>
+   * If cancelled or failing before the commit no class file of the chunk is changed. An enhancement
+   * interrupted during the commit is repaired by the next build.
+   * </p>
+   */
+  private void writeAll(Map<String, byte[]> transformedClasses) throws Exception {
+
+    long start = System.nanoTime();
+    Map<String, byte[]> written = new LinkedHashMap<>();
+    List<File> files = new ArrayList<>(transformedClasses.size());
+    for (Entry<String, byte[]> entry : transformedClasses.entrySet()) {
+      String className = entry.getKey();
+      File file = compiledClasses.get(className);
+      if (file.lastModified() != lastModified.get(className)) {
+        compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - not writing " + className + " recompiled during enhancement", null, -1, -1);
+        continue;
       }
+      written.put(className, entry.getValue());
+      files.add(file);
+    }
+
+    progressIndicator.setText2("writing " + written.size() + " classes");
+    component.getOutputWriter().write(written, compiledClasses, engine.getPool(), new ClassOutputWriter.Listener() {
+      @Override
+      public void beforeCommit() {
+        progressIndicator.checkCanceled();
+      }
+    });
+    // one refresh for all the output files rather than a refresh per file
+    LocalFileSystem.getInstance().refreshIoFiles(files);
+
+    // only record the enhanced classes once all the output is written
+    for (Entry<String, byte[]> entry : written.entrySet()) {
+      String className = entry.getKey();
+      caches.get(EnhancementCache.outputRoot(className, compiledClasses.get(className))).enhanced(className, entry.getValue());
     }
+    metrics.addTime(EnhancementMetrics.Phase.WRITE, System.nanoTime() - start);
+  }
 
-    compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean query bean enhancement complete!", null, -1, -1);
+  /**
+   * Add the classes of an enhancement interrupted while writing (IDE exit or crash) to be enhanced again.
+   */
+  private void recoverInterrupted() {
+    try {
+      Map<String, File> interrupted = component.getOutputWriter().recover();
+      int added = 0;
+      for (Entry<String, File> entry : interrupted.entrySet()) {
+        if (!compiledClasses.containsKey(entry.getKey())) {
+          compiledClasses.put(entry.getKey(), entry.getValue());
+          added++;
+        }
+      }
+      if (!interrupted.isEmpty()) {
+        compileContext.addMessage(CompilerMessageCategory.INFORMATION, "Ebean Query bean enhancement repairing " + interrupted.size()
+            + " classes of an interrupted enhancement (" + added + " not compiled by this build)", null, -1, -1);
+      }
+    } catch (IOException e) {
+      compileContext.addMessage(CompilerMessageCategory.WARNING, "Ebean query bean - error reading the enhancement journal " + e
+          + " - rebuild to ensure all classes are enhanced", null, -1, -1);
+    }
   }
 }
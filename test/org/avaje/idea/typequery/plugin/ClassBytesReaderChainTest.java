@@ -0,0 +1,83 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ClassBytesReaderChainTest {
+
+  private final byte[] first = MapClassBytesReader.bytes(4, 1);
+
+  private final byte[] second = MapClassBytesReader.bytes(4, 2);
+
+  @Test
+  public void firstReaderFindingTheClassWins() {
+    MapClassBytesReader one = new MapClassBytesReader().put("a/A", first);
+    MapClassBytesReader two = new MapClassBytesReader().put("a/A", second).put("a/B", second);
+    ClassBytesReaderChain chain = new ClassBytesReaderChain(one, two);
+
+    assertSame(first, chain.getClassBytes("a/A", null));
+    assertSame(second, chain.getClassBytes("a/B", null));
+  }
+
+  @Test
+  public void readersAfterTheHitAreNotCalled() {
+    MapClassBytesReader one = new MapClassBytesReader().put("a/A", first);
+    MapClassBytesReader two = new MapClassBytesReader().put("a/A", second);
+    new ClassBytesReaderChain(one, two).getClassBytes("a/A", null);
+
+    assertEquals(1, one.reads("a/A"));
+    assertEquals(0, two.totalReads());
+  }
+
+  @Test
+  public void notFoundByAnyReader() {
+    MapClassBytesReader one = new MapClassBytesReader();
+    MapClassBytesReader two = new MapClassBytesReader();
+
+    assertNull(new ClassBytesReaderChain(one, two).getClassBytes("a/A", null));
+    assertEquals(1, one.reads("a/A"));
+    assertEquals(1, two.reads("a/A"));
+  }
+
+  @Test
+  public void emptyChain() {
+    assertNull(new ClassBytesReaderChain().getClassBytes("a/A", null));
+  }
+
+  @Test
+  public void classLoaderPassedToEachReader() {
+    ClassLoader classLoader = getClass().getClassLoader();
+    MapClassBytesReader one = new MapClassBytesReader();
+    MapClassBytesReader two = new MapClassBytesReader().put("a/A", first);
+    new ClassBytesReaderChain(one, two).getClassBytes("a/A", classLoader);
+
+    assertSame(classLoader, one.lastClassLoader());
+    assertSame(classLoader, two.lastClassLoader());
+  }
+
+  @Test
+  public void readersInOrderUnaffectedByChangesToTheGivenList() {
+    MapClassBytesReader one = new MapClassBytesReader();
+    MapClassBytesReader two = new MapClassBytesReader();
+    List<ClassBytesReader> readers = new ArrayList<>();
+    readers.add(one);
+    readers.add(two);
+    ClassBytesReaderChain chain = new ClassBytesReaderChain(readers);
+    readers.clear();
+
+    assertEquals(2, chain.getReaders().size());
+    assertSame(one, chain.getReaders().get(0));
+    assertSame(two, chain.getReaders().get(1));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void readersNotModifiable() {
+    new ClassBytesReaderChain(new MapClassBytesReader()).getReaders().clear();
+  }
+}
@@ -0,0 +1,107 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.asm.ClassWriter;
+import org.avaje.ebean.typequery.agent.asm.Opcodes;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClassMetadataTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private static byte[] classBytes(int access, String name, String superName, String... interfaces) {
+    ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_8, access, name, null, superName, interfaces);
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  @Test
+  public void readsTypeHierarchy() {
+    ClassMetadata metadata = ClassMetadata.read(classBytes(Opcodes.ACC_PUBLIC, "a/b/C", "a/b/Base", "a/b/I", "a/b/J"));
+
+    assertEquals("a/b/C", metadata.getName());
+    assertEquals("a/b/Base", metadata.getSuperName());
+    assertArrayEquals(new String[]{"a/b/I", "a/b/J"}, metadata.getInterfaces());
+    assertFalse(metadata.isInterface());
+  }
+
+  @Test
+  public void readsInterfaceAndObject() {
+    assertTrue(ClassMetadata.read(classBytes(Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+        "a/b/I", "java/lang/Object")).isInterface());
+    assertNull(ClassMetadata.read(classBytes(Opcodes.ACC_PUBLIC, "java/lang/Object", null)).getSuperName());
+  }
+
+  /**
+   * Class file constants are modified UTF-8, a supplementary character being two 3 byte surrogates
+   * and the null character 2 bytes, which standard UTF-8 decodes as replacement characters.
+   */
+  @Test
+  public void decodesModifiedUtf8() {
+    String name = "a/b/C\u00e9\u4e2d\ud83d\ude00";
+    String superName = "a/b/Base\u0000x";
+    ClassMetadata metadata = ClassMetadata.read(classBytes(Opcodes.ACC_PUBLIC, name, superName));
+
+    assertEquals(name, metadata.getName());
+    assertEquals(superName, metadata.getSuperName());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void notAClassFile() {
+    ClassMetadata.read(MapClassBytesReader.bytes(20, 1));
+  }
+
+  /**
+   * Resolving classes via their metadata must enhance exactly as the agent does defining them.
+   */
+  @Test
+  public void metadataResolutionEnhancesAsDefiningClasses() throws Exception {
+    QueryBeanProject project = new QueryBeanProject(temp.newFolder("project"));
+
+    Map<String, byte[]> defined = enhance(project, false);
+    Map<String, byte[]> metadata = enhance(project, true);
+
+    assertNotNull(defined.get(QueryBeanProject.CALLER));
+    assertEquals(defined.keySet(), metadata.keySet());
+    for (Map.Entry<String, byte[]> entry : defined.entrySet()) {
+      assertArrayEquals(entry.getKey(), entry.getValue(), metadata.get(entry.getKey()));
+    }
+  }
+
+  /**
+   * Return the transformed bytes of the project classes (keyed by className) the agent changed.
+   */
+  private static Map<String, byte[]> enhance(QueryBeanProject project, boolean metadataResolution) throws Exception {
+    List<File> classpath = new ArrayList<>(Arrays.asList(project.getClassesDir(), project.getLibraryDir()));
+    Map<String, byte[]> transformed = new LinkedHashMap<>();
+    try (ClasspathClassBytesReader reader = new ClasspathClassBytesReader(classpath)) {
+      IdeaClassLoader classLoader = new IdeaClassLoader(ClassMetadataTest.class.getClassLoader(), reader);
+      InputStreamTransform transform = new InputStreamTransform(EnhancementEngine.createTransformer(QueryBeanProject.packages(), 0,
+          classLoader, metadataResolution), classLoader);
+      for (Map.Entry<String, File> entry : project.getClasses().entrySet()) {
+        byte[] bytes = transform.transform(entry.getKey(), entry.getValue());
+        if (bytes != null) {
+          transformed.put(entry.getKey(), bytes);
+        }
+      }
+    }
+    return transformed;
+  }
+}
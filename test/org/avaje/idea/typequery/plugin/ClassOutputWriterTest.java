@@ -0,0 +1,167 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClassOutputWriterTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final byte[] original = MapClassBytesReader.bytes(10, 1);
+
+  private final byte[] enhanced = MapClassBytesReader.bytes(12, 2);
+
+  private final Map<String, File> files = new LinkedHashMap<>();
+
+  private final Map<String, byte[]> classes = new LinkedHashMap<>();
+
+  private final ExecutorService workers = new ForkJoinPool(2);
+
+  private File journal;
+
+  @After
+  public void shutdown() {
+    workers.shutdown();
+  }
+
+  private void compile(String... classNames) throws IOException {
+    journal = new File(temp.getRoot(), "cache/journal");
+    for (String className : classNames) {
+      File file = new File(temp.getRoot(), "classes/" + className.replace('.', '/') + ".class");
+      assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+      Files.write(file.toPath(), original);
+      files.put(className, file);
+      classes.put(className, enhanced);
+    }
+  }
+
+  @Test
+  public void commitsAllClasses() throws IOException {
+    compile("a.b.C", "a.b.D", "a.e.F");
+
+    new ClassOutputWriter(journal).write(classes, files, workers, new ClassOutputWriter.Listener());
+
+    for (File file : files.values()) {
+      assertArrayEquals(enhanced, Files.readAllBytes(file.toPath()));
+      assertFalse(new File(file.getPath() + ClassOutputWriter.TEMP_SUFFIX).exists());
+    }
+    assertFalse(journal.exists());
+  }
+
+  /**
+   * Every temporary file is synced before any rename, the directories are synced after all the renames
+   * and the journal is only removed after that.
+   */
+  @Test
+  public void syncedBeforeRenamesAndRenamesSyncedBeforeJournalRemoved() throws IOException {
+    compile("a.b.C", "a.b.D", "a.e.F", "a.e.G");
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    ClassOutputWriter writer = new ClassOutputWriter(journal) {
+      @Override
+      void sync(File file, FileChannel channel) throws IOException {
+        super.sync(file, channel);
+        events.add(file.equals(journal) ? "syncJournal" : "syncTemp");
+      }
+
+      @Override
+      void move(File tempFile, File file) throws IOException {
+        assertTrue(journal.exists());
+        super.move(tempFile, file);
+        events.add("move");
+      }
+
+      @Override
+      void syncDirectory(File directory) {
+        super.syncDirectory(directory);
+        events.add("syncDirectory");
+      }
+
+      @Override
+      void deleteJournal() throws IOException {
+        super.deleteJournal();
+        events.add("deleteJournal");
+      }
+    };
+
+    writer.write(classes, files, workers, new ClassOutputWriter.Listener());
+
+    assertEquals(Arrays.asList("syncJournal", "syncTemp", "syncTemp", "syncTemp", "syncTemp", "move", "move", "move", "move",
+        "syncDirectory", "syncDirectory", "deleteJournal"), events);
+    assertFalse(journal.exists());
+  }
+
+  @Test
+  public void nothingChangedWhenNotCommitted() throws IOException {
+    compile("a.b.C", "a.e.F");
+
+    try {
+      new ClassOutputWriter(journal).write(classes, files, null, new ClassOutputWriter.Listener() {
+        @Override
+        public void beforeCommit() {
+          throw new IllegalStateException("cancelled");
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    for (File file : files.values()) {
+      assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+      assertFalse(new File(file.getPath() + ClassOutputWriter.TEMP_SUFFIX).exists());
+    }
+    assertFalse(journal.exists());
+  }
+
+  @Test
+  public void recoversInterruptedWrite() throws IOException {
+    compile("a.b.C", "a.e.F");
+    ClassOutputWriter writer = new ClassOutputWriter(journal);
+    try {
+      // interrupted part way through the commit, the journal remains
+      writer.write(classes, files, null, new ClassOutputWriter.Listener() {
+        @Override
+        public void beforeCommit() {
+          assertTrue(journal.exists());
+          throw new Error("crash");
+        }
+      });
+      fail();
+    } catch (Error e) {
+      // the journal is removed as nothing was committed, write one for an interrupted commit
+    }
+    assertFalse(journal.exists());
+    Files.write(journal.toPath(), ("querybean-enhancement-journal 1\n"
+        + "a.b.C\t" + files.get("a.b.C").getPath() + "\n"
+        + "a.e.F\t" + files.get("a.e.F").getPath() + "\n").getBytes("UTF-8"));
+    File tempFile = new File(files.get("a.e.F").getPath() + ClassOutputWriter.TEMP_SUFFIX);
+    Files.write(tempFile.toPath(), enhanced);
+
+    Map<String, File> recovered = writer.recover();
+    assertEquals(files, recovered);
+    assertFalse(tempFile.exists());
+    assertFalse(journal.exists());
+    assertTrue(writer.recover().isEmpty());
+  }
+}
@@ -0,0 +1,117 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClasspathClassBytesReaderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final byte[] dirContent = MapClassBytesReader.bytes(10, 1);
+
+  private final byte[] jarContent = MapClassBytesReader.bytes(10, 2);
+
+  private File directory(String classNamePath, byte[] content) throws IOException {
+    File dir = temp.newFolder();
+    File file = new File(dir, classNamePath + ".class");
+    assertTrue(file.getParentFile().mkdirs());
+    Files.write(file.toPath(), content);
+    return dir;
+  }
+
+  private File jar(String classNamePath, byte[] content) throws IOException {
+    File jar = temp.newFile();
+    try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+      out.putNextEntry(new JarEntry(classNamePath + ".class"));
+      out.write(content);
+      out.closeEntry();
+    }
+    return jar;
+  }
+
+  @Test
+  public void jarBeforeDirectory() throws IOException {
+    File jar = jar("a/b/C", jarContent);
+    File dir = directory("a/b/C", dirContent);
+
+    try (ClasspathClassBytesReader reader = new ClasspathClassBytesReader(Arrays.asList(jar, dir))) {
+      assertArrayEquals(jarContent, reader.getClassBytes("a/b/C", null));
+    }
+  }
+
+  @Test
+  public void directoryBeforeJar() throws IOException {
+    File jar = jar("a/b/C", jarContent);
+    File dir = directory("a/b/C", dirContent);
+
+    try (ClasspathClassBytesReader reader = new ClasspathClassBytesReader(Arrays.asList(dir, jar))) {
+      assertArrayEquals(dirContent, reader.getClassBytes("a/b/C", null));
+    }
+  }
+
+  /**
+   * A corrupt jar on the classpath fails the reader closing the jars opened before it.
+   */
+  @Test
+  public void closesOpenedJarsWhenAJarCanNotBeOpened() throws IOException {
+    File fdDir = new File("/proc/self/fd");
+    Assume.assumeTrue("open files are listed by /proc", fdDir.isDirectory());
+    File jar = jar("a/b/C", jarContent);
+    File corrupt = temp.newFile("corrupt.jar");
+    Files.write(corrupt.toPath(), MapClassBytesReader.bytes(100, 7));
+
+    try {
+      new ClasspathClassBytesReader(Arrays.asList(jar, corrupt));
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, openCount(fdDir, jar));
+  }
+
+  /**
+   * Return the number of open file descriptors of the file.
+   */
+  private static int openCount(File fdDir, File file) throws IOException {
+    int count = 0;
+    File[] fds = fdDir.listFiles();
+    if (fds != null) {
+      for (File fd : fds) {
+        try {
+          if (Files.readSymbolicLink(fd.toPath()).equals(file.getCanonicalFile().toPath())) {
+            count++;
+          }
+        } catch (IOException e) {
+          // closed while listing
+        }
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void classNotOnClasspath() throws IOException {
+    File jar = jar("a/b/C", jarContent);
+
+    try (ClasspathClassBytesReader reader = new ClasspathClassBytesReader(Arrays.asList(jar, new File(temp.getRoot(), "missing")))) {
+      assertNull(reader.getClassBytes("a/b/D", null));
+    }
+  }
+}
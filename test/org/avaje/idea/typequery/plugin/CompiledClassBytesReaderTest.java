@@ -0,0 +1,84 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledClassBytesReaderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final byte[] content = MapClassBytesReader.bytes(10, 7);
+
+  private final Map<String, File> compiled = new HashMap<>();
+
+  private final ClassBytesStore store = new ClassBytesStore();
+
+  private File compile(String className) throws IOException {
+    File file = new File(temp.getRoot(), className.replace('.', '/') + ".class");
+    assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+    Files.write(file.toPath(), content);
+    compiled.put(className, file);
+    return file;
+  }
+
+  @Test
+  public void readsCompiledClassViaTheStore() throws IOException {
+    compile("a.b.C");
+    CompiledClassBytesReader reader = new CompiledClassBytesReader(compiled, store);
+
+    byte[] bytes = reader.getClassBytes("a/b/C", null);
+    assertArrayEquals(content, bytes);
+    assertEquals(1, store.getReads());
+
+    // read once, shared with the transform of the class
+    assertSame(bytes, store.read("a.b.C", compiled.get("a.b.C")));
+    assertSame(bytes, reader.getClassBytes("a/b/C", null));
+    assertEquals(1, store.getReads());
+    assertEquals(2, store.getHits());
+  }
+
+  @Test
+  public void readAgainOnceTheStoreIsCleared() throws IOException {
+    compile("a.b.C");
+    CompiledClassBytesReader reader = new CompiledClassBytesReader(compiled, store);
+
+    byte[] bytes = reader.getClassBytes("a/b/C", null);
+    store.clear();
+    byte[] again = reader.getClassBytes("a/b/C", null);
+    assertArrayEquals(bytes, again);
+    assertNotSame(bytes, again);
+    assertEquals(2, store.getReads());
+  }
+
+  @Test
+  public void classNotCompiledByTheBuild() throws IOException {
+    compile("a.b.C");
+    CompiledClassBytesReader reader = new CompiledClassBytesReader(compiled, store);
+
+    assertNull(reader.getClassBytes("a/b/D", null));
+    assertEquals(0, store.getReads());
+  }
+
+  @Test
+  public void deletedClassFileNotFound() throws IOException {
+    File file = compile("a.b.C");
+    assertTrue(file.delete());
+
+    assertNull(new CompiledClassBytesReader(compiled, store).getClassBytes("a/b/C", null));
+  }
+}
@@ -0,0 +1,145 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.asm.ClassWriter;
+import org.avaje.ebean.typequery.agent.asm.Opcodes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdeaClassLoaderTest {
+
+  private static final int CLASS_COUNT = 200;
+
+  private static final int THREAD_COUNT = 16;
+
+  private static final int ROUNDS = 20;
+
+  /**
+   * Return the bytes of an empty class.
+   */
+  private static byte[] emptyClass(String classNamePath) {
+    ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, classNamePath, null, "java/lang/Object", null);
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static MapClassBytesReader classes() {
+    MapClassBytesReader reader = new MapClassBytesReader();
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      reader.put(name(i).replace('.', '/'), emptyClass(name(i).replace('.', '/')));
+    }
+    return reader;
+  }
+
+  private static String name(int i) {
+    return "stress.C" + i;
+  }
+
+  @Test
+  public void loadsClassFromReader() throws Exception {
+    IdeaClassLoader classLoader = new IdeaClassLoader(getClass().getClassLoader(), classes());
+
+    Class<?> loaded = classLoader.loadClass("stress.C1");
+    assertEquals("stress.C1", loaded.getName());
+    assertSame(classLoader, loaded.getClassLoader());
+    assertSame(loaded, classLoader.loadClass("stress.C1"));
+  }
+
+  @Test
+  public void missingClassNotFound() {
+    MapClassBytesReader reader = classes();
+    IdeaClassLoader classLoader = new IdeaClassLoader(getClass().getClassLoader(), reader);
+    int misses = classLoader.getMisses();
+    try {
+      classLoader.loadClass("stress.Missing");
+      fail();
+    } catch (ClassNotFoundException e) {
+      assertEquals(misses + 1, classLoader.getMisses());
+      assertEquals(1, reader.reads("stress/Missing"));
+    }
+  }
+
+  /**
+   * Many threads loading the same classes at once (in different orders) must each get the same Class
+   * with every class read and defined once, a duplicate define failing with a LinkageError.
+   */
+  @Test
+  public void concurrentLoadsDefineEachClassOnce() throws Exception {
+    stress(false);
+  }
+
+  /**
+   * As for loading but calling findClass directly, without the per class lock taken by loadClass.
+   */
+  @Test
+  public void concurrentFindsDefineEachClassOnce() throws Exception {
+    stress(true);
+  }
+
+  private void stress(final boolean find) throws Exception {
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    try {
+      for (int round = 0; round < ROUNDS; round++) {
+        final MapClassBytesReader reader = classes();
+        final IdeaClassLoader classLoader = new IdeaClassLoader(getClass().getClassLoader(), reader);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<Class<?>[]>> futures = new ArrayList<>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+          final int seed = t;
+          futures.add(executor.submit(new Callable<Class<?>[]>() {
+            @Override
+            public Class<?>[] call() throws Exception {
+              List<Integer> order = new ArrayList<>();
+              for (int i = 0; i < CLASS_COUNT; i++) {
+                order.add(i);
+              }
+              // half the threads load in the same order to collide on each class
+              if (seed % 2 == 1) {
+                Collections.shuffle(order, new Random(seed));
+              }
+              start.await();
+              Class<?>[] loaded = new Class<?>[CLASS_COUNT];
+              for (int i : order) {
+                loaded[i] = find ? classLoader.findClass(name(i)) : classLoader.loadClass(name(i));
+              }
+              return loaded;
+            }
+          }));
+        }
+        start.countDown();
+
+        Class<?>[] first = futures.get(0).get(30, TimeUnit.SECONDS);
+        for (Future<Class<?>[]> future : futures) {
+          Class<?>[] loaded = future.get(30, TimeUnit.SECONDS);
+          for (int i = 0; i < CLASS_COUNT; i++) {
+            assertSame(first[i], loaded[i]);
+          }
+        }
+        for (int i = 0; i < CLASS_COUNT; i++) {
+          assertEquals(name(i), first[i].getName());
+          assertEquals(1, reader.reads(name(i).replace('.', '/')));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+}
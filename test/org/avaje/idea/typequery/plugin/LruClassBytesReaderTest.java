@@ -0,0 +1,68 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LruClassBytesReaderTest {
+
+  private final byte[] a = MapClassBytesReader.bytes(4, 1);
+
+  private final byte[] b = MapClassBytesReader.bytes(4, 2);
+
+  private final byte[] c = MapClassBytesReader.bytes(4, 3);
+
+  private final MapClassBytesReader delegate = new MapClassBytesReader().put("a/A", a).put("a/B", b).put("a/C", c);
+
+  @Test
+  public void hitServedFromCache() {
+    LruClassBytesReader reader = new LruClassBytesReader(delegate, 100);
+
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertEquals(1, delegate.reads("a/A"));
+    assertEquals(1, reader.size());
+  }
+
+  @Test
+  public void missNotCached() {
+    LruClassBytesReader reader = new LruClassBytesReader(delegate, 100);
+
+    assertNull(reader.getClassBytes("a/Missing", null));
+    assertNull(reader.getClassBytes("a/Missing", null));
+    assertEquals(2, delegate.reads("a/Missing"));
+    assertEquals(0, reader.size());
+  }
+
+  @Test
+  public void leastRecentlyUsedEvictedOverTheByteLimit() {
+    LruClassBytesReader reader = new LruClassBytesReader(delegate, 10);
+    reader.getClassBytes("a/A", null);
+    reader.getClassBytes("a/B", null);
+    // A is now more recently used than B
+    reader.getClassBytes("a/A", null);
+    // 12 bytes exceeds the limit so B is evicted
+    reader.getClassBytes("a/C", null);
+
+    assertEquals(2, reader.size());
+    reader.getClassBytes("a/A", null);
+    reader.getClassBytes("a/C", null);
+    assertEquals(1, delegate.reads("a/A"));
+    assertEquals(1, delegate.reads("a/C"));
+
+    reader.getClassBytes("a/B", null);
+    assertEquals(2, delegate.reads("a/B"));
+  }
+
+  @Test
+  public void classLargerThanTheLimitNotCached() {
+    LruClassBytesReader reader = new LruClassBytesReader(delegate, 3);
+
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertEquals(2, delegate.reads("a/A"));
+    assertEquals(0, reader.size());
+  }
+}
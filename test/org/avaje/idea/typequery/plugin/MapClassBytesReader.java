@@ -0,0 +1,70 @@
+package org.avaje.idea.typequery.plugin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reader of class bytes held in memory (keyed by classNamePath) counting the reads of each class.
+ */
+class MapClassBytesReader implements ClassBytesReader {
+
+  private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+
+  private final AtomicInteger totalReads = new AtomicInteger();
+
+  private volatile ClassLoader lastClassLoader;
+
+  MapClassBytesReader put(String classNamePath, byte[] bytes) {
+    classes.put(classNamePath, bytes);
+    return this;
+  }
+
+  @Override
+  public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+    lastClassLoader = classLoader;
+    totalReads.incrementAndGet();
+    AtomicInteger count = reads.get(classNamePath);
+    if (count == null) {
+      AtomicInteger created = new AtomicInteger();
+      count = reads.putIfAbsent(classNamePath, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+    return classes.get(classNamePath);
+  }
+
+  /**
+   * Return the number of times the class was read (including misses).
+   */
+  int reads(String classNamePath) {
+    AtomicInteger count = reads.get(classNamePath);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Return the total number of reads.
+   */
+  int totalReads() {
+    return totalReads.get();
+  }
+
+  ClassLoader lastClassLoader() {
+    return lastClassLoader;
+  }
+
+  /**
+   * Return bytes of the given length filled with the value (content only matters for identity).
+   */
+  static byte[] bytes(int length, int value) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) value;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,50 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsClassBytesReaderTest {
+
+  private final byte[] a = MapClassBytesReader.bytes(4, 1);
+
+  @Test
+  public void countsHitsAndMisses() {
+    MapClassBytesReader delegate = new MapClassBytesReader().put("a/A", a);
+    MetricsClassBytesReader reader = new MetricsClassBytesReader("test", delegate);
+
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertNull(reader.getClassBytes("a/Missing", null));
+
+    assertEquals(2, reader.getHits());
+    assertEquals(1, reader.getMisses());
+    assertEquals(3, delegate.totalReads());
+    assertTrue(reader.getNanos() >= 0);
+    assertEquals("test", reader.getName());
+    assertEquals("test:2/1(" + reader.getMillis() + "ms)", reader.toString());
+  }
+
+  @Test
+  public void timeIncludesTheDelegate() {
+    MetricsClassBytesReader reader = new MetricsClassBytesReader("slow", new ClassBytesReader() {
+      @Override
+      public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    });
+    reader.getClassBytes("a/A", null);
+
+    assertTrue(reader.getMillis() >= 20);
+    assertEquals(0, reader.getHits());
+    assertEquals(1, reader.getMisses());
+  }
+}
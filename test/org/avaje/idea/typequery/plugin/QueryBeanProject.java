@@ -0,0 +1,175 @@
+package org.avaje.idea.typequery.plugin;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a small project of entities, their query beans and a caller of the query beans.
+ * <p>
+ * The query bean support types (TQRootBean, PString etc) are minimal stand ins for the querybean
+ * library compiled separately into the library directory, such that resolving them needs the library.
+ * The caller merges two query bean types so the frame computation resolves their common super class.
+ * </p>
+ */
+class QueryBeanProject {
+
+  static final String DOMAIN_PACKAGE = "app.domain";
+
+  static final String CALLER = "app.service.CustomerService";
+
+  private final File libraryDir;
+
+  private final File classesDir;
+
+  private final File sourceDir;
+
+  /**
+   * The project classes in the order generated (entities, query beans and lastly the caller).
+   */
+  private final Map<String, File> classes = new LinkedHashMap<>();
+
+  QueryBeanProject(File baseDir) throws IOException {
+    this.libraryDir = new File(baseDir, "lib");
+    this.classesDir = new File(baseDir, "classes");
+    this.sourceDir = new File(baseDir, "src");
+
+    List<File> library = new ArrayList<>();
+    library.add(write(sourceDir, "org.avaje.ebean.typequery.TypeQueryBean", "package org.avaje.ebean.typequery;\n"
+        + "import java.lang.annotation.*;\n"
+        + "@Retention(RetentionPolicy.CLASS) @Target(ElementType.TYPE)\n"
+        + "public @interface TypeQueryBean {}\n"));
+    library.add(write(sourceDir, "org.avaje.ebean.typequery.TQRootBean", "package org.avaje.ebean.typequery;\n"
+        + "public abstract class TQRootBean<T, R> {\n"
+        + "  protected R root;\n"
+        + "  public TQRootBean(Class<T> beanType) {}\n"
+        + "  public TQRootBean(boolean alias) {}\n"
+        + "  protected void setRoot(R root) { this.root = root; }\n"
+        + "  public java.util.List<T> findList() { return null; }\n"
+        + "}\n"));
+    library.add(write(sourceDir, "org.avaje.ebean.typequery.PString", "package org.avaje.ebean.typequery;\n"
+        + "public class PString<R> {\n"
+        + "  private final R root;\n"
+        + "  public PString(String name, R root) { this.root = root; }\n"
+        + "  public R eq(String value) { return root; }\n"
+        + "}\n"));
+    compile(library, libraryDir, null);
+
+    List<String> classNames = new ArrayList<>();
+    List<File> project = new ArrayList<>();
+    for (String entity : new String[]{"Customer", "Order"}) {
+      String qbean = "Q" + entity;
+      classNames.add(DOMAIN_PACKAGE + "." + entity);
+      project.add(write(sourceDir, DOMAIN_PACKAGE + "." + entity, "package " + DOMAIN_PACKAGE + ";\n"
+          + "public class " + entity + " {\n"
+          + "  String name;\n"
+          + "}\n"));
+      classNames.add(DOMAIN_PACKAGE + ".query." + qbean);
+      project.add(write(sourceDir, DOMAIN_PACKAGE + ".query." + qbean, "package " + DOMAIN_PACKAGE + ".query;\n"
+          + "import org.avaje.ebean.typequery.*;\n"
+          + "import " + DOMAIN_PACKAGE + "." + entity + ";\n"
+          + "@TypeQueryBean\n"
+          + "public class " + qbean + " extends TQRootBean<" + entity + ", " + qbean + "> {\n"
+          + "  public PString<" + qbean + "> name;\n"
+          + "  public " + qbean + "() { super(" + entity + ".class); }\n"
+          + "  public " + qbean + "(boolean alias) { super(alias); }\n"
+          + "}\n"));
+    }
+    classNames.add(CALLER);
+    project.add(write(sourceDir, CALLER, "package app.service;\n"
+        + "import " + DOMAIN_PACKAGE + ".query.*;\n"
+        + "public class CustomerService {\n"
+        + "  public Object find(String name) {\n"
+        + "    return new QCustomer().name.eq(name).findList();\n"
+        + "  }\n"
+        + "  public Object pick(boolean customers) {\n"
+        + "    org.avaje.ebean.typequery.TQRootBean<?, ?> query = customers ? new QCustomer() : new QOrder();\n"
+        + "    return query.findList();\n"
+        + "  }\n"
+        + "}\n"));
+    compile(project, classesDir, libraryDir.getPath());
+
+    for (String className : classNames) {
+      classes.put(className, new File(classesDir, className.replace('.', '/') + ".class"));
+    }
+  }
+
+  /**
+   * Return the query bean packages of the project.
+   */
+  static Set<String> packages() {
+    return Collections.singleton(DOMAIN_PACKAGE);
+  }
+
+  File getLibraryDir() {
+    return libraryDir;
+  }
+
+  File getClassesDir() {
+    return classesDir;
+  }
+
+  /**
+   * Return the project class files keyed by className, the caller last.
+   */
+  Map<String, File> getClasses() {
+    return classes;
+  }
+
+  /**
+   * Compile the source of a project class again (as a later compile round does) returning its class file.
+   */
+  File recompile(String className, String source) throws IOException {
+    compile(Collections.singletonList(write(sourceDir, className, source)), classesDir,
+        libraryDir.getPath() + File.pathSeparator + classesDir.getPath());
+    return classes.get(className);
+  }
+
+  private static File write(File sourceDir, String className, String source) throws IOException {
+    File file = new File(sourceDir, className.replace('.', '/') + ".java");
+    File dir = file.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static void compile(List<File> sources, File outputDir, String classpath) throws IOException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IOException("No system java compiler, run the tests using a JDK");
+    }
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      throw new IOException("Unable to create directory " + outputDir);
+    }
+    List<String> args = new ArrayList<>();
+    args.add("-nowarn");
+    // the agent reads class files up to Java 8
+    args.add("-source");
+    args.add("8");
+    args.add("-target");
+    args.add("8");
+    args.add("-d");
+    args.add(outputDir.getPath());
+    if (classpath != null) {
+      args.add("-cp");
+      args.add(classpath);
+    }
+    for (File source : sources) {
+      args.add(source.getPath());
+    }
+    if (compiler.run(null, null, null, args.toArray(new String[args.size()])) != 0) {
+      throw new IOException("Compiling the query bean project failed");
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.avaje.ebean.typequery.agent.asm.ClassWriter;
+import org.avaje.ebean.typequery.agent.asm.MethodVisitor;
+import org.avaje.ebean.typequery.agent.asm.Opcodes;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryBeanReferenceScannerTest {
+
+  /**
+   * A package with a supplementary character, encoded in the class file as two 3 byte surrogates.
+   */
+  private static final String DOMAIN = "app/d\ud83d\ude00main";
+
+  private final QueryBeanReferenceScanner scanner = new QueryBeanReferenceScanner(Collections.singleton(DOMAIN.replace('/', '.')));
+
+  /**
+   * Return the bytes of a class reading the name field of the query bean.
+   */
+  private static byte[] caller(String name, String queryBean) {
+    ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+    MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "find", "(L" + queryBean + ";)Ljava/lang/Object;", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 1);
+    mv.visitFieldInsn(Opcodes.GETFIELD, queryBean, "name", "Ljava/lang/Object;");
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(1, 2);
+    mv.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  /**
+   * Return the bytes of a query bean of the entity.
+   */
+  private static byte[] queryBean(String name, String entity) {
+    ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name,
+        "Lorg/avaje/ebean/typequery/TQRootBean<L" + entity + ";L" + name + ";>;", "org/avaje/ebean/typequery/TQRootBean", null);
+    writer.visitAnnotation("Lorg/avaje/ebean/typequery/TypeQueryBean;", false).visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  @Test
+  public void findsQueryBeanReferences() {
+    Set<String> references = new HashSet<>();
+    assertTrue(scanner.isEnhancementCandidate(caller("app/service/Service", DOMAIN + "/query/QCustomer"), references));
+    assertEquals(Collections.singleton(DOMAIN.replace('/', '.') + ".query.QCustomer"), references);
+  }
+
+  @Test
+  public void otherPackageNotCandidate() {
+    assertFalse(scanner.isEnhancementCandidate(caller("app/service/Service", "app/other/query/QCustomer")));
+  }
+
+  /**
+   * Names are decoded as modified UTF-8 (as ClassMetadata) so those with supplementary or null
+   * characters match the packages.
+   */
+  @Test
+  public void decodesModifiedUtf8() {
+    Set<String> references = new HashSet<>();
+    String queryBean = DOMAIN + "/query/QCust\u0000omer";
+    assertTrue(scanner.isEnhancementCandidate(caller("app/service/Service", queryBean), references));
+    assertEquals(Collections.singleton(queryBean.replace('/', '.')), references);
+
+    String entity = DOMAIN + "/Cust\u0000omer";
+    assertEquals(entity.replace('/', '.'), scanner.queryBeanEntity(queryBean(queryBean, entity)));
+  }
+}
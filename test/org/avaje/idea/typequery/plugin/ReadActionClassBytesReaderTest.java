@@ -0,0 +1,77 @@
+package org.avaje.idea.typequery.plugin;
+
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Disposer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReadActionClassBytesReaderTest {
+
+  private final byte[] a = MapClassBytesReader.bytes(4, 1);
+
+  private Disposable disposable;
+
+  private volatile boolean inReadAction;
+
+  private int readActions;
+
+  @Before
+  public void setUp() {
+    disposable = Disposer.newDisposable();
+    ApplicationManager.setApplication(new MockApplication(disposable) {
+      @Override
+      public <T> T runReadAction(Computable<T> computation) {
+        readActions++;
+        inReadAction = true;
+        try {
+          return computation.compute();
+        } finally {
+          inReadAction = false;
+        }
+      }
+    }, disposable);
+  }
+
+  @After
+  public void tearDown() {
+    Disposer.dispose(disposable);
+  }
+
+  @Test
+  public void delegateReadInsideReadAction() {
+    final boolean[] delegateInReadAction = new boolean[1];
+    ClassBytesReader delegate = new ClassBytesReader() {
+      @Override
+      public byte[] getClassBytes(String classNamePath, ClassLoader classLoader) {
+        delegateInReadAction[0] = inReadAction;
+        return "a/A".equals(classNamePath) ? a : null;
+      }
+    };
+    ReadActionClassBytesReader reader = new ReadActionClassBytesReader(delegate);
+
+    assertSame(a, reader.getClassBytes("a/A", null));
+    assertTrue(delegateInReadAction[0]);
+    assertFalse(inReadAction);
+    assertEquals(1, readActions);
+  }
+
+  @Test
+  public void missAndClassLoaderPassedThrough() {
+    MapClassBytesReader delegate = new MapClassBytesReader();
+    ClassLoader classLoader = getClass().getClassLoader();
+
+    assertNull(new ReadActionClassBytesReader(delegate).getClassBytes("a/Missing", classLoader));
+    assertEquals(1, delegate.reads("a/Missing"));
+    assertSame(classLoader, delegate.lastClassLoader());
+  }
+}
@@ -0,0 +1,103 @@
+package org.avaje.idea.typequery.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingEnhancerTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void streamedCallerResolvesLibraryTypesAsMetadata() throws Exception {
+    assertStreamedWithLibrary(true);
+  }
+
+  @Test
+  public void streamedCallerResolvesLibraryTypesDefiningClasses() throws Exception {
+    assertStreamedWithLibrary(false);
+  }
+
+  /**
+   * A class compiled again in the same build (a later compile round) is transformed from its new
+   * bytes, not the bytes held from the first version.
+   */
+  @Test
+  public void classCompiledAgainUsesTheNewBytes() throws Exception {
+
+    QueryBeanProject project = new QueryBeanProject(temp.newFolder("project"));
+    File cacheDir = temp.newFolder("cache");
+    QueryBeanDependencyGraph dependencyGraph = QueryBeanDependencyGraph.load(cacheDir);
+
+    try (ClasspathClassBytesReader libraryReader = new ClasspathClassBytesReader(Collections.singletonList(project.getLibraryDir()))) {
+      IdeaClassLoader libraryLoader = new IdeaClassLoader(getClass().getClassLoader(), libraryReader);
+      EnhancementLog log = new EnhancementLog(EnhancementLog.DEFAULT_CAPACITY, false);
+      StreamingEnhancer enhancer = new StreamingEnhancer(QueryBeanProject.packages(), libraryLoader, new ClassLocationCache(),
+          dependencyGraph, QueryBeanIndex.load(cacheDir), 1, 0, false, log);
+
+      for (Map.Entry<String, File> entry : project.getClasses().entrySet()) {
+        enhancer.add(entry.getKey(), entry.getValue());
+      }
+      // wait for the first version of the caller (using query beans) to be transformed
+      String queryBean = QueryBeanProject.DOMAIN_PACKAGE + ".query.QCustomer";
+      long deadline = System.currentTimeMillis() + 30000;
+      while (!dependencyGraph.callers(Collections.singleton(queryBean)).containsKey(QueryBeanProject.CALLER)) {
+        assertTrue("caller not transformed", System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+
+      // the second version uses no query beans so needs no enhancement
+      File caller = project.recompile(QueryBeanProject.CALLER, "package app.service;\n"
+          + "public class CustomerService {\n"
+          + "  public Object find(String name) { return name; }\n"
+          + "}\n");
+      assertTrue(caller.setLastModified(caller.lastModified() + 2000));
+      enhancer.add(QueryBeanProject.CALLER, caller);
+
+      StreamingEnhancer.Result result = enhancer.finish().get(QueryBeanProject.CALLER);
+      if (result != null) {
+        assertNull("enhanced the first version over the second", result.getTransformed());
+      }
+    }
+  }
+
+  /**
+   * The caller needs the common super class of two query beans (TQRootBean) which is only in the
+   * library, so is only enhanced while streaming when library classes are resolved.
+   */
+  private void assertStreamedWithLibrary(boolean metadataResolution) throws Exception {
+
+    QueryBeanProject project = new QueryBeanProject(temp.newFolder("project"));
+    File cacheDir = temp.newFolder("cache");
+
+    try (ClasspathClassBytesReader libraryReader = new ClasspathClassBytesReader(Collections.singletonList(project.getLibraryDir()))) {
+      // stands in for the library class loader of the enhancement context
+      IdeaClassLoader libraryLoader = new IdeaClassLoader(getClass().getClassLoader(), libraryReader);
+      EnhancementLog log = new EnhancementLog(EnhancementLog.DEFAULT_CAPACITY, false);
+      StreamingEnhancer enhancer = new StreamingEnhancer(QueryBeanProject.packages(), libraryLoader, new ClassLocationCache(),
+          QueryBeanDependencyGraph.load(cacheDir), QueryBeanIndex.load(cacheDir), 2, 0, metadataResolution, log);
+
+      for (Map.Entry<String, File> entry : project.getClasses().entrySet()) {
+        enhancer.add(entry.getKey(), entry.getValue());
+      }
+      Map<String, StreamingEnhancer.Result> results = enhancer.finish();
+
+      StreamingEnhancer.Result caller = results.get(QueryBeanProject.CALLER);
+      assertNotNull("caller not enhanced while streaming " + log.getRetained(), caller);
+      assertNotNull(caller.getTransformed());
+      assertNotNull(results.get(QueryBeanProject.DOMAIN_PACKAGE + ".query.QCustomer").getTransformed());
+      assertNotNull(results.get(QueryBeanProject.DOMAIN_PACKAGE + ".query.QOrder").getTransformed());
+      assertEquals(project.getClasses().size(), results.size());
+    }
+  }
+}